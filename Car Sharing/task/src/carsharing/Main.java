@@ -1,768 +1,7455 @@
 package carsharing;
 
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
 import java.sql.*;
+import java.time.*;
+import java.time.format.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.stream.*;
+import java.util.zip.*;
 
 @FunctionalInterface
 interface ObjectInstanceCreator<T> {
     T apply(ResultSet rs) throws SQLException;
 }
 
-class DbClient<T> {
-    private final String databaseUrl;
+@FunctionalInterface
+interface RowVisitor {
+    void visit(ResultSet rs) throws SQLException;
+}
 
-    DbClient(String databaseUrl) {
-        this.databaseUrl = databaseUrl;
+class LatencyHistogram {
+
+    // values below 2^SUB_BUCKET_BITS get exact buckets, above that every power of two is split into
+    // SUB_BUCKETS linear buckets, which keeps the relative error around 3% like an HDR histogram
+    static private final int SUB_BUCKET_BITS = 5;
+
+    static private final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+
+    private final LongAdder totalCount = new LongAdder();
+
+    private final AtomicLong max = new AtomicLong();
+
+    static int indexOf(long value) {
+        if(value < SUB_BUCKETS) return (int) Math.max(0, value);
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
     }
 
-    public void executeUpdateStatement(String sql) {
-        try(
-                Connection conn = DriverManager.getConnection(databaseUrl);
-                Statement stmn = conn.createStatement();
-        ) {
-            stmn.executeUpdate(sql);
-        } catch (SQLException se) {
-            se.printStackTrace();
-        }
+    static long highestValueAt(int index) {
+        if(index < SUB_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    public void record(long value) {
+        counts.incrementAndGet(indexOf(value));
+        totalCount.increment();
+        max.accumulateAndGet(value, Math::max);
     }
 
-    public List<T> executeQueryStatement(String sql, ObjectInstanceCreator<T> objectInstanceCreator) {
+    public long getTotalCount() {
+        return totalCount.sum();
+    }
 
-        List<T> result = new ArrayList<>();
+    public long getMax() {
+        return max.get();
+    }
 
-        try (
-            Connection conn = DriverManager.getConnection(databaseUrl);
-            Statement stmn = conn.createStatement();
-        ) {
-            try (ResultSet rs = stmn.executeQuery(sql)) {
-                while(rs.next()) {
-                    result.add(objectInstanceCreator.apply(rs));
-                }
-                return result;
-            }
-        } catch (SQLException se) {
-            se.printStackTrace();
+    public long getValueAtPercentile(double percentile) {
+        long total = getTotalCount();
+        if(total == 0) return 0;
+        long target = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for(int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if(seen >= target) return Math.min(highestValueAt(i), getMax());
         }
-        return null;
+        return getMax();
     }
 }
 
-class Company {
+class StatementStats {
 
-    final private String name;
+    private final LatencyHistogram acquire = new LatencyHistogram();
 
-    final private int id;
+    private final LatencyHistogram execute = new LatencyHistogram();
 
-    Company(int id, String name) {
-        this.id = id;
-        this.name = name;
+    private final LatencyHistogram mapping = new LatencyHistogram();
+
+    public LatencyHistogram getAcquire() {
+        return acquire;
     }
 
-    public String getName() {
-        return name;
+    public LatencyHistogram getExecute() {
+        return execute;
     }
 
-    public int getId() {
-        return id;
+    public LatencyHistogram getMapping() {
+        return mapping;
     }
 }
 
-interface ICompanyDao {
+class QueryStats {
 
-    void createCompany(String name);
+    static private final long DEFAULT_SLOW_QUERY_MILLIS = 200;
 
-    List<Company> getAllCompanies();
+    private final Map<String, String> normalizedStatements = new ConcurrentHashMap<>();
 
-    Company getByName(String name);
+    private final Map<String, StatementStats> statementStats = new ConcurrentHashMap<>();
 
-    Company getById(int id);
+    private final long slowQueryNanos = Long.getLong("carsharing.slowQueryMillis", DEFAULT_SLOW_QUERY_MILLIS) * 1_000_000;
+
+    // statements are parameterized, so normalizing only has to fold whitespace and inlined numbers
+    private String normalize(String sql) {
+        return normalizedStatements.computeIfAbsent(
+                sql,
+                key -> key.replaceAll("\\s+", " ").replaceAll("\\b\\d+\\b", "?").trim()
+        );
+    }
+
+    private StatementStats statsFor(String sql) {
+        return statementStats.computeIfAbsent(normalize(sql), key -> new StatementStats());
+    }
+
+    public void recordAcquire(String sql, long nanos) {
+        statsFor(sql).getAcquire().record(nanos);
+    }
+
+    public void recordExecution(String sql, long executeNanos, long mappingNanos) {
+        StatementStats stats = statsFor(sql);
+        stats.getExecute().record(executeNanos);
+        if(mappingNanos >= 0) stats.getMapping().record(mappingNanos);
+        if(executeNanos + mappingNanos > slowQueryNanos) {
+            System.err.printf(
+                    Locale.ROOT,
+                    "Slow query (%.1f ms): %s%n",
+                    (executeNanos + Math.max(0, mappingNanos)) / 1_000_000.0,
+                    normalize(sql)
+            );
+        }
+    }
 
+    public Map<String, StatementStats> getStatementStats() {
+        return new TreeMap<>(statementStats);
+    }
 }
 
+class PooledConnection implements AutoCloseable {
 
+    static private final int STATEMENT_CACHE_SIZE = 64;
 
-class CompanyDao extends DbClient<Company> implements ICompanyDao {
+    private final ConnectionPool pool;
 
-    static private final ObjectInstanceCreator<Company> companyCreator = (ResultSet rs) ->  new Company(rs.getInt("id"), rs.getString("name"));
+    private final Connection connection;
+
+    private final Map<String, PreparedStatement> statementCache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+            if(size() <= STATEMENT_CACHE_SIZE) return false;
+            closeStatement(eldest.getValue());
+            return true;
+        }
+    };
 
-    CompanyDao() {
-        super("jdbc:h2:./src/carsharing/db/carsharing");
-        executeUpdateStatement("CREATE TABLE IF NOT EXISTS COMPANY(ID INT PRIMARY KEY AUTO_INCREMENT, NAME VARCHAR(255) UNIQUE NOT NULL)");
+    private long lastUsedMillis = System.currentTimeMillis();
+
+    private boolean leased;
+
+    PooledConnection(ConnectionPool pool, Connection connection) {
+        this.pool = pool;
+        this.connection = connection;
     }
 
-    @Override
-    public void createCompany(String name) {
-        executeUpdateStatement(String.format("INSERT INTO COMPANY(NAME) values('%s')", name));
+    public Connection getConnection() {
+        return connection;
     }
 
-    @Override
-    public List<Company> getAllCompanies() {
-        return executeQueryStatement(
-                "SELECT ID, NAME FROM COMPANY ORDER BY ID",
-                companyCreator
-        );
+    long getLastUsedMillis() {
+        return lastUsedMillis;
     }
 
-    @Override
-    public Company getByName(String name) {
-        List<Company> result =executeQueryStatement(
-                String.format("SELECT ID, NAME FROM COMPANY WHERE NAME='%s' LIMIT 1", name),
-                companyCreator
-        );
+    void lease() {
+        leased = true;
+    }
 
-        return result.isEmpty() ? null : result.get(0);
+    boolean isValid() {
+        try {
+            return !connection.isClosed() && connection.isValid(1);
+        } catch (SQLException se) {
+            return false;
+        }
     }
 
-    @Override
-    public Company getById(int id) {
-        List<Company> result =executeQueryStatement(
-                String.format("SELECT ID, NAME FROM COMPANY WHERE ID=%d LIMIT 1", id),
-                companyCreator
-        );
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        return prepareStatement(sql, false);
+    }
 
-        return result.isEmpty() ? null : result.get(0);
+    public PreparedStatement prepareStatement(String sql, boolean returnGeneratedKeys) throws SQLException {
+        String cacheKey = returnGeneratedKeys ? "KEYS:" + sql : sql;
+        PreparedStatement statement = statementCache.get(cacheKey);
+        if(statement == null || statement.isClosed()) {
+            statement = returnGeneratedKeys ?
+                    connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS) :
+                    connection.prepareStatement(sql);
+            statementCache.put(cacheKey, statement);
+        } else {
+            statement.clearParameters();
+        }
+        return statement;
     }
 
-}
+    public QueryStats getQueryStats() {
+        return pool.getQueryStats();
+    }
 
-class Car {
-    final private int id;
+    public Integer executeInsert(String sql, Object... args) throws SQLException {
+        PreparedStatement statement = prepareStatement(sql, true);
+        bind(statement, args);
+        long start = System.nanoTime();
+        statement.executeUpdate();
+        long executed = System.nanoTime();
+        try (ResultSet keys = statement.getGeneratedKeys()) {
+            return keys.next() ? keys.getInt(1) : null;
+        } finally {
+            getQueryStats().recordExecution(sql, executed - start, System.nanoTime() - executed);
+        }
+    }
 
-    final private String name;
+    public int executeUpdate(String sql, Object... args) throws SQLException {
+        PreparedStatement statement = prepareStatement(sql);
+        bind(statement, args);
+        long start = System.nanoTime();
+        try {
+            return statement.executeUpdate();
+        } finally {
+            getQueryStats().recordExecution(sql, System.nanoTime() - start, -1);
+        }
+    }
 
-    final private int companyId;
+    public <R> List<R> executeQuery(String sql, ObjectInstanceCreator<R> objectInstanceCreator, Object... args) throws SQLException {
+        PreparedStatement statement = prepareStatement(sql);
+        bind(statement, args);
+        List<R> result = new ArrayList<>();
+        long start = System.nanoTime();
+        try (ResultSet rs = statement.executeQuery()) {
+            long executed = System.nanoTime();
+            while(rs.next()) {
+                result.add(objectInstanceCreator.apply(rs));
+            }
+            getQueryStats().recordExecution(sql, executed - start, System.nanoTime() - executed);
+        }
+        return result;
+    }
 
-    Car(int id, String name, int companyId) {
-        this.id = id;
-        this.name = name;
-        this.companyId = companyId;
+    static void bind(PreparedStatement statement, Object... args) throws SQLException {
+        for(int i = 0; i < args.length; i++) {
+            if(args[i] == null) {
+                statement.setNull(i + 1, Types.NULL);
+            } else {
+                statement.setObject(i + 1, args[i]);
+            }
+        }
     }
 
-    public String getName() {
-        return name;
+    static private void closeStatement(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException se) {
+            se.printStackTrace();
+        }
     }
 
-    public int getId() {return id;}
+    void closePhysical() {
+        statementCache.values().forEach(PooledConnection::closeStatement);
+        statementCache.clear();
+        try {
+            connection.close();
+        } catch (SQLException se) {
+            se.printStackTrace();
+        }
+    }
 
-    public int getCompanyId() {
-        return companyId;
+    @Override
+    public void close() {
+        if(!leased) return;
+        leased = false;
+        lastUsedMillis = System.currentTimeMillis();
+        pool.release(this);
     }
 }
 
-interface ICarDao {
+class ConnectionPool implements AutoCloseable {
 
-    void createCar(String name, int companyId);
+    private final String databaseUrl;
 
-    List<Car> getCarsByCompanyId(int companyId);
+    private final int maxSize;
 
-    List<Car> getAvailableCarsByCompanyId(int companyId);
+    private final long idleTimeoutMillis;
 
-    Car getCarById(int id);
+    private final long borrowTimeoutMillis = 30_000;
 
-    Car getCarByName(String name);
-}
+    private final Semaphore permits;
 
-class CarDao extends DbClient<Car> implements ICarDao {
+    private final Deque<PooledConnection> idleConnections = new ArrayDeque<>();
 
-    static private final ObjectInstanceCreator<Car> carCreator = (ResultSet rs) -> new Car(
-            rs.getInt("ID"),
-            rs.getString("NAME"),
-            rs.getInt("COMPANY_ID")
-    );
+    private final AtomicInteger connectionsInUse = new AtomicInteger();
 
-    CarDao() {
-        super("jdbc:h2:./src/carsharing/db/carsharing");
-        executeUpdateStatement(
-                "CREATE TABLE IF NOT EXISTS car(" +
-                        "ID INT AUTO_INCREMENT PRIMARY KEY," +
-                        "NAME VARCHAR(250) NOT NULL UNIQUE," +
-                        "COMPANY_ID INT NOT NULL," +
-                        "CONSTRAINT FK_CAR_COMPANY FOREIGN KEY (COMPANY_ID) " +
-                        "REFERENCES COMPANY(ID)" +
-                        "ON DELETE CASCADE" +
-                        ")"
-        );
+    private final AtomicLong borrowCount = new AtomicLong();
+
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    private final QueryStats queryStats = new QueryStats();
+
+    private final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "connection-pool-evictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile boolean closed;
+
+    ConnectionPool(String databaseUrl, int maxSize, long idleTimeoutMillis) {
+        this.databaseUrl = databaseUrl;
+        this.maxSize = maxSize;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.permits = new Semaphore(maxSize, true);
+        evictor.scheduleWithFixedDelay(this::evictIdleConnections, idleTimeoutMillis, idleTimeoutMillis, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "connection-pool-shutdown"));
     }
 
-    static public ObjectInstanceCreator<Car> getCarCreator() {
-        return carCreator;
+    public PooledConnection borrow() throws SQLException {
+        if(closed) throw new SQLException("The connection pool is closed");
+
+        long start = System.nanoTime();
+        try {
+            if(!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timed out waiting for a database connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+        recordWait(System.nanoTime() - start);
+
+        try {
+            PooledConnection pooledConnection = takeValidIdleConnection();
+            if(pooledConnection == null) {
+                pooledConnection = new PooledConnection(this, DriverManager.getConnection(databaseUrl));
+            }
+            pooledConnection.lease();
+            connectionsInUse.incrementAndGet();
+            return pooledConnection;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
     }
 
-    @Override
-    public void createCar(String name, int companyId) {
-        executeUpdateStatement(
-                String.format("INSERT INTO CAR(NAME, COMPANY_ID) VALUES('%s', %s)", name, companyId)
-        );
+    void release(PooledConnection pooledConnection) {
+        connectionsInUse.decrementAndGet();
+        try {
+            if(closed || !resetState(pooledConnection)) {
+                pooledConnection.closePhysical();
+                return;
+            }
+            synchronized (idleConnections) {
+                idleConnections.addFirst(pooledConnection);
+            }
+        } finally {
+            permits.release();
+        }
     }
 
-    @Override
-    public List<Car> getCarsByCompanyId(int companyId) {
-        return executeQueryStatement(
-                String.format(
-                        "SELECT ID, NAME, COMPANY_ID FROM CAR WHERE COMPANY_ID = %d",
-                        companyId
-                ),
-                carCreator
-        );
+    private PooledConnection takeValidIdleConnection() {
+        while(true) {
+            PooledConnection pooledConnection;
+            synchronized (idleConnections) {
+                pooledConnection = idleConnections.pollFirst();
+            }
+            if(pooledConnection == null || pooledConnection.isValid()) return pooledConnection;
+            pooledConnection.closePhysical();
+        }
     }
 
-    @Override
-    public List<Car> getAvailableCarsByCompanyId(int companyId) {
-        return executeQueryStatement(
-                String.format(
-                        "SELECT CAR.ID as ID, CAR.NAME as NAME, CAR.COMPANY_ID as COMPANY_ID FROM CAR " +
-                                "LEFT JOIN CUSTOMER ON CUSTOMER.RENTED_CAR_ID = CAR.ID "+
-                                "WHERE CAR.COMPANY_ID = %d AND CUSTOMER.ID IS NULL",
-                        companyId
-                ),
-                carCreator
-        );
+    private boolean resetState(PooledConnection pooledConnection) {
+        try {
+            Connection connection = pooledConnection.getConnection();
+            if(connection.isClosed()) return false;
+            if(!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            return true;
+        } catch (SQLException se) {
+            se.printStackTrace();
+            return false;
+        }
     }
 
-    @Override
-    public Car getCarById(int id) {
-        List<Car> result =executeQueryStatement(
-                String.format("SELECT ID, NAME, COMPANY_ID FROM CAR WHERE ID=%d LIMIT 1", id),
-                carCreator
-        );
+    private void recordWait(long waitNanos) {
+        borrowCount.incrementAndGet();
+        totalWaitNanos.addAndGet(waitNanos);
+        maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+    }
 
-        return result.isEmpty() ? null : result.get(0);
+    private void evictIdleConnections() {
+        long now = System.currentTimeMillis();
+        List<PooledConnection> evicted = new ArrayList<>();
+        synchronized (idleConnections) {
+            // always keep one connection open so the embedded database file is not closed between actions
+            Iterator<PooledConnection> iterator = idleConnections.descendingIterator();
+            while(iterator.hasNext() && idleConnections.size() > 1) {
+                PooledConnection pooledConnection = iterator.next();
+                if(now - pooledConnection.getLastUsedMillis() >= idleTimeoutMillis) {
+                    iterator.remove();
+                    evicted.add(pooledConnection);
+                }
+            }
+        }
+        evicted.forEach(PooledConnection::closePhysical);
     }
 
-    @Override
-    public Car getCarByName(String name) {
-        List<Car> result =executeQueryStatement(
-                String.format("SELECT ID, NAME, COMPANY_ID FROM CAR WHERE NAME='%s' LIMIT 1", name),
-                carCreator
-        );
+    public QueryStats getQueryStats() {
+        return queryStats;
+    }
 
-        return result.isEmpty() ? null : result.get(0);
+    public int getMaxSize() {
+        return maxSize;
     }
-}
 
-class Customer {
-    final private int id;
+    public String getDatabaseUrl() {
+        return databaseUrl;
+    }
 
-    final private String name;
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
 
-    private final Integer rentedCarId;
+    public int getConnectionsInUse() {
+        return connectionsInUse.get();
+    }
 
-    Customer(int id, String name, Integer rentedCarId) {
-        this.id = id;
-        this.name = name;
-        this.rentedCarId = rentedCarId;
+    public int getIdleConnections() {
+        synchronized (idleConnections) {
+            return idleConnections.size();
+        }
     }
 
-    public String getName() {
-        return name;
+    public long getBorrowCount() {
+        return borrowCount.get();
     }
 
-    public Integer getRentedCarId() {
-        return rentedCarId;
+    public double getAverageWaitMillis() {
+        long count = borrowCount.get();
+        return count == 0 ? 0 : totalWaitNanos.get() / (count * 1_000_000.0);
+    }
+
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1_000_000.0;
+    }
+
+    @Override
+    public void close() {
+        if(closed) return;
+        closed = true;
+        evictor.shutdownNow();
+        List<PooledConnection> remaining;
+        synchronized (idleConnections) {
+            remaining = new ArrayList<>(idleConnections);
+            idleConnections.clear();
+        }
+        remaining.forEach(PooledConnection::closePhysical);
     }
 }
 
-interface ICustomerDao {
-    void createCustomer(String name);
+// thrown from stream and spliterator code, which cannot declare SQLException
+class UncheckedSQLException extends RuntimeException {
 
-    void setCustomerRentedCarId(String name, Integer rentedCarId);
+    static private final long serialVersionUID = 1L;
 
-    Customer getCustomerByName(String name);
+    UncheckedSQLException(SQLException cause) {
+        super(cause.getMessage(), cause);
+    }
 
-    List<Customer> getAllCustomers();
+    @Override
+    public synchronized SQLException getCause() {
+        return (SQLException) super.getCause();
+    }
 }
 
-class CustomerDao extends DbClient<Customer> implements ICustomerDao {
+class ResultSetSpliterator<T> extends Spliterators.AbstractSpliterator<T> {
 
-    static private final ObjectInstanceCreator<Customer> customerCreator = (ResultSet rs) -> new Customer(
-            rs.getInt("ID"),
-            rs.getString("NAME"),
-            rs.getInt("RENTED_CAR_ID") == 0 ? null : rs.getInt("RENTED_CAR_ID")
-    );
+    private final ResultSet rs;
 
-    CustomerDao() {
-        super("jdbc:h2:./src/carsharing/db/carsharing");
-        executeUpdateStatement(
-                "CREATE TABLE IF NOT EXISTS CUSTOMER(" +
-                        "ID INT AUTO_INCREMENT PRIMARY KEY," +
-                        "NAME VARCHAR(250) NOT NULL UNIQUE," +
-                        "RENTED_CAR_ID INT," +
-                        "CONSTRAINT FK_CUSTOMER_CAR FOREIGN KEY (RENTED_CAR_ID) " +
-                        "REFERENCES CAR(ID)" +
-                        "ON DELETE CASCADE" +
-                        ")"
-        );
+    private final ObjectInstanceCreator<T> objectInstanceCreator;
+
+    private long mappingNanos;
+
+    ResultSetSpliterator(ResultSet rs, ObjectInstanceCreator<T> objectInstanceCreator) {
+        super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+        this.rs = rs;
+        this.objectInstanceCreator = objectInstanceCreator;
     }
 
     @Override
-    public void createCustomer(String name) {
-        executeUpdateStatement(
-                String.format("INSERT INTO CUSTOMER(NAME) VALUES('%s')", name)
-        );
+    public boolean tryAdvance(Consumer<? super T> action) {
+        try {
+            long start = System.nanoTime();
+            if(!rs.next()) return false;
+            T row = objectInstanceCreator.apply(rs);
+            mappingNanos += System.nanoTime() - start;
+            action.accept(row);
+            return true;
+        } catch (SQLException se) {
+            throw new UncheckedSQLException(se);
+        }
     }
 
-    @Override
-    public void setCustomerRentedCarId(String name, Integer rentedCarId) {
-        executeUpdateStatement(
-                rentedCarId != null ?
-                        String.format("UPDATE CUSTOMER SET RENTED_CAR_ID = %d WHERE NAME = '%s'", rentedCarId, name):
-                        String.format("UPDATE CUSTOMER SET RENTED_CAR_ID = NULL WHERE NAME = '%s'", name)
-        );
+    public long getMappingNanos() {
+        return mappingNanos;
     }
+}
 
-    @Override
-    public Customer getCustomerByName(String name) {
-        List<Customer> result =executeQueryStatement(
-                String.format("SELECT ID, NAME, RENTED_CAR_ID FROM CUSTOMER WHERE NAME='%s' LIMIT 1", name),
-                customerCreator
-        );
+class DbClient<T> {
+    static private final int DEFAULT_FETCH_SIZE = 500;
+
+    static private final int BATCH_CHUNK_SIZE = 1_000;
+
+    private final ConnectionPool connectionPool;
+
+    private int fetchSize = DEFAULT_FETCH_SIZE;
 
-        return result.isEmpty() ? null : result.get(0);
+    DbClient(ConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
     }
 
-    @Override
-    public List<Customer> getAllCustomers() {
-        return executeQueryStatement(
-                "SELECT ID, NAME, RENTED_CAR_ID FROM CUSTOMER ORDER BY ID",
-                customerCreator
-        );
+    public ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    private PooledConnection borrow(String sql) throws SQLException {
+        long start = System.nanoTime();
+        PooledConnection conn = connectionPool.borrow();
+        connectionPool.getQueryStats().recordAcquire(sql, System.nanoTime() - start);
+        return conn;
+    }
+
+    public void executeUpdateStatement(String sql, Object... args) {
+        try (PooledConnection conn = borrow(sql)) {
+            conn.executeUpdate(sql, args);
+        } catch (SQLException se) {
+            se.printStackTrace();
+        }
+    }
+
+    public Integer executeInsertStatement(String sql, Object... args) {
+        try (PooledConnection conn = borrow(sql)) {
+            return conn.executeInsert(sql, args);
+        } catch (SQLException se) {
+            se.printStackTrace();
+        }
+        return null;
+    }
+
+    public List<Integer> executeBatchInsertStatement(String sql, List<Object[]> rows) {
+        List<Integer> ids = new ArrayList<>(rows.size());
+        try (PooledConnection conn = borrow(sql)) {
+            Connection connection = conn.getConnection();
+            connection.setAutoCommit(false);
+            PreparedStatement statement = conn.prepareStatement(sql, true);
+            for(int start = 0; start < rows.size(); start += BATCH_CHUNK_SIZE) {
+                List<Integer> chunkIds = new ArrayList<>();
+                try {
+                    for(Object[] row: rows.subList(start, Math.min(rows.size(), start + BATCH_CHUNK_SIZE))) {
+                        PooledConnection.bind(statement, row);
+                        statement.addBatch();
+                    }
+                    long batchStart = System.nanoTime();
+                    statement.executeBatch();
+                    long executed = System.nanoTime();
+                    try (ResultSet keys = statement.getGeneratedKeys()) {
+                        while(keys.next()) {
+                            chunkIds.add(keys.getInt(1));
+                        }
+                    }
+                    connection.commit();
+                    conn.getQueryStats().recordExecution(sql, executed - batchStart, System.nanoTime() - executed);
+                    ids.addAll(chunkIds);
+                } catch (SQLException se) {
+                    statement.clearBatch();
+                    connection.rollback();
+                    throw se;
+                }
+            }
+        } catch (SQLException se) {
+            se.printStackTrace();
+        }
+        return ids;
+    }
+
+    public boolean executeBatchUpdateStatement(String sql, List<Object[]> rows) {
+        try (PooledConnection conn = borrow(sql)) {
+            Connection connection = conn.getConnection();
+            connection.setAutoCommit(false);
+            PreparedStatement statement = conn.prepareStatement(sql);
+            for(int start = 0; start < rows.size(); start += BATCH_CHUNK_SIZE) {
+                try {
+                    for(Object[] row: rows.subList(start, Math.min(rows.size(), start + BATCH_CHUNK_SIZE))) {
+                        PooledConnection.bind(statement, row);
+                        statement.addBatch();
+                    }
+                    long batchStart = System.nanoTime();
+                    statement.executeBatch();
+                    connection.commit();
+                    conn.getQueryStats().recordExecution(sql, System.nanoTime() - batchStart, -1);
+                } catch (SQLException se) {
+                    statement.clearBatch();
+                    connection.rollback();
+                    throw se;
+                }
+            }
+            return true;
+        } catch (SQLException se) {
+            se.printStackTrace();
+        }
+        return false;
+    }
+
+    public List<T> executeQueryStatement(String sql, ObjectInstanceCreator<T> objectInstanceCreator, Object... args) {
+        try (PooledConnection conn = borrow(sql)) {
+            return conn.executeQuery(sql, objectInstanceCreator, args);
+        } catch (SQLException se) {
+            se.printStackTrace();
+        }
+        return null;
+    }
+
+    public Stream<T> streamQueryStatement(String sql, ObjectInstanceCreator<T> objectInstanceCreator, Object... args) {
+        PooledConnection conn = null;
+        try {
+            conn = borrow(sql);
+            PreparedStatement statement = conn.prepareStatement(sql);
+            PooledConnection.bind(statement, args);
+            statement.setFetchSize(fetchSize);
+            long start = System.nanoTime();
+            ResultSet rs = statement.executeQuery();
+            long executeNanos = System.nanoTime() - start;
+            PooledConnection lease = conn;
+            ResultSetSpliterator<T> rows = new ResultSetSpliterator<>(rs, objectInstanceCreator);
+            return StreamSupport.stream(rows, false)
+                    .onClose(() -> {
+                        lease.getQueryStats().recordExecution(sql, executeNanos, rows.getMappingNanos());
+                        try {
+                            rs.close();
+                        } catch (SQLException se) {
+                            se.printStackTrace();
+                        } finally {
+                            lease.close();
+                        }
+                    });
+        } catch (SQLException se) {
+            if(conn != null) conn.close();
+            throw new UncheckedSQLException(se);
+        }
+    }
+
+    public boolean scanQueryStatement(String sql, RowVisitor visitor, Object... args) {
+        try (PooledConnection conn = borrow(sql)) {
+            PreparedStatement statement = conn.prepareStatement(sql);
+            PooledConnection.bind(statement, args);
+            statement.setFetchSize(fetchSize);
+            long start = System.nanoTime();
+            try (ResultSet rs = statement.executeQuery()) {
+                long executed = System.nanoTime();
+                while(rs.next()) {
+                    visitor.visit(rs);
+                }
+                conn.getQueryStats().recordExecution(sql, executed - start, System.nanoTime() - executed);
+            }
+            return true;
+        } catch (SQLException se) {
+            se.printStackTrace();
+        }
+        return false;
+    }
+
+    public void forEachRow(String sql, ObjectInstanceCreator<T> objectInstanceCreator, Consumer<T> rowCallback, Object... args) {
+        try (Stream<T> rows = streamQueryStatement(sql, objectInstanceCreator, args)) {
+            rows.forEach(rowCallback);
+        }
+    }
+}
+
+class Migration {
+
+    final private int version;
+
+    final private String description;
+
+    final private List<String> statements;
+
+    Migration(int version, String description, String... statements) {
+        this.version = version;
+        this.description = description;
+        this.statements = List.of(statements);
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public List<String> getStatements() {
+        return statements;
+    }
+}
+
+class SchemaMigrationException extends IllegalStateException {
+
+    static private final long serialVersionUID = 1L;
+
+    SchemaMigrationException(String message, SQLException cause) {
+        super(message, cause);
+    }
+}
+
+class SchemaMigrator extends DbClient<Integer> {
+
+    static private final List<Migration> migrations = List.of(
+            new Migration(
+                    1,
+                    "Create company table",
+                    "CREATE TABLE IF NOT EXISTS COMPANY(ID INT PRIMARY KEY AUTO_INCREMENT, NAME VARCHAR(255) UNIQUE NOT NULL)"
+            ),
+            new Migration(
+                    2,
+                    "Create car table",
+                    "CREATE TABLE IF NOT EXISTS CAR(" +
+                            "ID INT AUTO_INCREMENT PRIMARY KEY," +
+                            "NAME VARCHAR(250) NOT NULL UNIQUE," +
+                            "COMPANY_ID INT NOT NULL," +
+                            "CONSTRAINT FK_CAR_COMPANY FOREIGN KEY (COMPANY_ID) " +
+                            "REFERENCES COMPANY(ID)" +
+                            "ON DELETE CASCADE" +
+                            ")"
+            ),
+            new Migration(
+                    3,
+                    "Create customer table",
+                    "CREATE TABLE IF NOT EXISTS CUSTOMER(" +
+                            "ID INT AUTO_INCREMENT PRIMARY KEY," +
+                            "NAME VARCHAR(250) NOT NULL UNIQUE," +
+                            "RENTED_CAR_ID INT," +
+                            "CONSTRAINT FK_CUSTOMER_CAR FOREIGN KEY (RENTED_CAR_ID) " +
+                            "REFERENCES CAR(ID)" +
+                            "ON DELETE CASCADE" +
+                            ")"
+            ),
+            new Migration(
+                    4,
+                    "Index cars by company",
+                    "CREATE INDEX IF NOT EXISTS IDX_CAR_COMPANY_ID ON CAR(COMPANY_ID, ID)"
+            ),
+            new Migration(
+                    5,
+                    "Index customers by rented car",
+                    "CREATE INDEX IF NOT EXISTS IDX_CUSTOMER_RENTED_CAR_ID ON CUSTOMER(RENTED_CAR_ID)"
+            ),
+            new Migration(
+                    6,
+                    "Allow a car to be rented by one customer at a time",
+                    // older databases can hold the same car on several customers, the earliest customer keeps it
+                    "UPDATE CUSTOMER SET RENTED_CAR_ID = NULL " +
+                            "WHERE RENTED_CAR_ID IS NOT NULL " +
+                            "AND ID > (SELECT MIN(OTHER.ID) FROM CUSTOMER OTHER WHERE OTHER.RENTED_CAR_ID = CUSTOMER.RENTED_CAR_ID)",
+                    "ALTER TABLE CUSTOMER ADD CONSTRAINT IF NOT EXISTS UQ_CUSTOMER_RENTED_CAR_ID UNIQUE(RENTED_CAR_ID)",
+                    "DROP INDEX IF EXISTS IDX_CUSTOMER_RENTED_CAR_ID"
+            ),
+            new Migration(
+                    7,
+                    "Track when the current rental started",
+                    "ALTER TABLE CUSTOMER ADD COLUMN IF NOT EXISTS RENTED_AT TIMESTAMP"
+            ),
+            new Migration(
+                    8,
+                    "Create reservation table",
+                    "CREATE TABLE IF NOT EXISTS RESERVATION(" +
+                            "ID INT AUTO_INCREMENT PRIMARY KEY," +
+                            "CAR_ID INT NOT NULL," +
+                            "CUSTOMER_ID INT NOT NULL," +
+                            "STARTS_AT TIMESTAMP NOT NULL," +
+                            "ENDS_AT TIMESTAMP NOT NULL," +
+                            "CONSTRAINT FK_RESERVATION_CAR FOREIGN KEY (CAR_ID) " +
+                            "REFERENCES CAR(ID) " +
+                            "ON DELETE CASCADE," +
+                            "CONSTRAINT FK_RESERVATION_CUSTOMER FOREIGN KEY (CUSTOMER_ID) " +
+                            "REFERENCES CUSTOMER(ID) " +
+                            "ON DELETE CASCADE," +
+                            "CONSTRAINT CK_RESERVATION_WINDOW CHECK (ENDS_AT > STARTS_AT)" +
+                            ")",
+                    "CREATE INDEX IF NOT EXISTS IDX_RESERVATION_CAR_ENDS_AT ON RESERVATION(CAR_ID, ENDS_AT)",
+                    "CREATE INDEX IF NOT EXISTS IDX_RESERVATION_CUSTOMER_ENDS_AT ON RESERVATION(CUSTOMER_ID, ENDS_AT)",
+                    "CREATE INDEX IF NOT EXISTS IDX_RESERVATION_ENDS_AT ON RESERVATION(ENDS_AT)"
+            ),
+            new Migration(
+                    9,
+                    "Record the shard layout",
+                    "CREATE TABLE IF NOT EXISTS SHARD_CONFIG(" +
+                            "SHARD_INDEX INT PRIMARY KEY," +
+                            "SHARD_COUNT INT NOT NULL" +
+                            ")"
+            )
+    );
+
+    static private final ObjectInstanceCreator<Integer> versionCreator = (ResultSet rs) -> rs.getInt(1);
+
+    SchemaMigrator(ConnectionPool connectionPool) {
+        super(connectionPool);
+    }
+
+    public int migrate() {
+        return migrateTo(Integer.MAX_VALUE);
+    }
+
+    // a database that cannot be brought up to date is unusable, so failures are thrown rather than reported
+    public int migrateTo(int targetVersion) {
+        int currentVersion = 0;
+        try (PooledConnection conn = getConnectionPool().borrow()) {
+            execute(
+                    conn,
+                    "CREATE TABLE IF NOT EXISTS SCHEMA_VERSION(" +
+                            "VERSION INT PRIMARY KEY," +
+                            "DESCRIPTION VARCHAR(255) NOT NULL," +
+                            "APPLIED_AT TIMESTAMP DEFAULT CURRENT_TIMESTAMP NOT NULL" +
+                            ")"
+            );
+            currentVersion = conn.executeQuery("SELECT COALESCE(MAX(VERSION), 0) FROM SCHEMA_VERSION", versionCreator).get(0);
+            for(Migration migration: migrations) {
+                if(migration.getVersion() <= currentVersion) continue;
+                if(migration.getVersion() > targetVersion) break;
+                apply(conn, migration);
+                currentVersion = migration.getVersion();
+            }
+            return currentVersion;
+        } catch (SQLException se) {
+            throw new SchemaMigrationException(String.format(
+                    "Could not migrate %s past schema version %d: %s",
+                    getConnectionPool().getDatabaseUrl(),
+                    currentVersion,
+                    se.getMessage()
+            ), se);
+        }
+    }
+
+    // H2 commits every DDL statement on its own, so the rollback only undoes DML run after the last DDL;
+    // a migration that fails half way is re-run from its first statement, which is why each one is written
+    // to be re-runnable (IF [NOT] EXISTS, updates that are no-ops the second time)
+    private void apply(PooledConnection conn, Migration migration) throws SQLException {
+        Connection connection = conn.getConnection();
+        connection.setAutoCommit(false);
+        try {
+            for(String statement: migration.getStatements()) {
+                execute(conn, statement);
+            }
+            conn.executeUpdate(
+                    "INSERT INTO SCHEMA_VERSION(VERSION, DESCRIPTION) VALUES(?, ?)",
+                    migration.getVersion(),
+                    migration.getDescription()
+            );
+            connection.commit();
+        } catch (SQLException se) {
+            connection.rollback();
+            throw se;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    // DDL runs once, so it goes through a plain statement instead of the prepared statement cache
+    private void execute(PooledConnection conn, String sql) throws SQLException {
+        try (Statement stmn = conn.getConnection().createStatement()) {
+            stmn.executeUpdate(sql);
+        }
+    }
+}
+
+class Company {
+
+    final private String name;
+
+    final private int id;
+
+    Company(int id, String name) {
+        this.id = id;
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getId() {
+        return id;
+    }
+}
+
+interface ICompanyDao {
+
+    Company createCompany(String name);
+
+    List<Integer> createCompanies(Collection<String> names);
+
+    List<Company> getAllCompanies();
+
+    Stream<Company> streamAllCompanies();
+
+    List<Company> getCompaniesPage(int afterId, int limit);
+
+    CompanySnapshot snapshotAllCompanies();
+
+    Company getByName(String name);
+
+    Company getById(int id);
+
+}
+
+
+
+class CompanyDao extends DbClient<Company> implements ICompanyDao {
+
+    static private final ObjectInstanceCreator<Company> companyCreator = (ResultSet rs) ->  new Company(rs.getInt("id"), rs.getString("name"));
+
+    CompanyDao(ConnectionPool connectionPool) {
+        super(connectionPool);
+    }
+
+    @Override
+    public Company createCompany(String name) {
+        Integer id = executeInsertStatement("INSERT INTO COMPANY(NAME) VALUES(?)", name);
+        return id == null ? null : new Company(id, name);
+    }
+
+    @Override
+    public List<Integer> createCompanies(Collection<String> names) {
+        return executeBatchInsertStatement(
+                "INSERT INTO COMPANY(NAME) VALUES(?)",
+                names.stream().map(name -> new Object[]{name}).toList()
+        );
+    }
+
+    @Override
+    public List<Company> getAllCompanies() {
+        return executeQueryStatement(
+                "SELECT ID, NAME FROM COMPANY ORDER BY ID",
+                companyCreator
+        );
+    }
+
+    @Override
+    public Stream<Company> streamAllCompanies() {
+        return streamQueryStatement(
+                "SELECT ID, NAME FROM COMPANY ORDER BY ID",
+                companyCreator
+        );
+    }
+
+    @Override
+    public CompanySnapshot snapshotAllCompanies() {
+        CompanySnapshot snapshot = new CompanySnapshot(16);
+        boolean complete = scanQueryStatement(
+                "SELECT ID, NAME FROM COMPANY ORDER BY ID",
+                (ResultSet rs) -> snapshot.append(rs.getInt(1), rs.getString(2))
+        );
+        snapshot.seal();
+        return complete ? snapshot : null;
+    }
+
+    @Override
+    public List<Company> getCompaniesPage(int afterId, int limit) {
+        return executeQueryStatement(
+                "SELECT ID, NAME FROM COMPANY WHERE ID > ? ORDER BY ID LIMIT ?",
+                companyCreator,
+                afterId,
+                limit
+        );
+    }
+
+    @Override
+    public Company getByName(String name) {
+        List<Company> result =executeQueryStatement(
+                "SELECT ID, NAME FROM COMPANY WHERE NAME = ? LIMIT 1",
+                companyCreator,
+                name
+        );
+
+        return result == null || result.isEmpty() ? null : result.get(0);
+    }
+
+    @Override
+    public Company getById(int id) {
+        List<Company> result =executeQueryStatement(
+                "SELECT ID, NAME FROM COMPANY WHERE ID = ? LIMIT 1",
+                companyCreator,
+                id
+        );
+
+        return result == null || result.isEmpty() ? null : result.get(0);
+    }
+
+}
+
+class Car {
+    final private int id;
+
+    final private String name;
+
+    final private int companyId;
+
+    Car(int id, String name, int companyId) {
+        this.id = id;
+        this.name = name;
+        this.companyId = companyId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getId() {return id;}
+
+    public int getCompanyId() {
+        return companyId;
+    }
+}
+
+interface ICarDao {
+
+    Car createCar(String name, int companyId);
+
+    List<Integer> createCars(int companyId, Collection<String> names);
+
+    List<Car> getCarsByCompanyId(int companyId);
+
+    CarSnapshot snapshotCarsByCompanyId(int companyId);
+
+    CarSnapshot snapshotAllCars();
+
+    Stream<Car> streamAllCars();
+
+    List<Car> getCarsPageByCompanyId(int companyId, int afterId, int limit);
+
+    List<Car> getAvailableCarsByCompanyId(int companyId);
+
+    List<Car> getAvailableCarsPageByCompanyId(int companyId, int afterId, int limit);
+
+    Car getCarById(int id);
+
+    Car getCarByName(String name);
+}
+
+class CarDao extends DbClient<Car> implements ICarDao {
+
+    static private final ObjectInstanceCreator<Car> carCreator = (ResultSet rs) -> new Car(
+            rs.getInt("ID"),
+            rs.getString("NAME"),
+            rs.getInt("COMPANY_ID")
+    );
+
+    CarDao(ConnectionPool connectionPool) {
+        super(connectionPool);
+    }
+
+    static public ObjectInstanceCreator<Car> getCarCreator() {
+        return carCreator;
+    }
+
+    @Override
+    public Car createCar(String name, int companyId) {
+        Integer id = executeInsertStatement(
+                "INSERT INTO CAR(NAME, COMPANY_ID) VALUES(?, ?)",
+                name,
+                companyId
+        );
+        return id == null ? null : new Car(id, name, companyId);
+    }
+
+    @Override
+    public List<Integer> createCars(int companyId, Collection<String> names) {
+        return executeBatchInsertStatement(
+                "INSERT INTO CAR(NAME, COMPANY_ID) VALUES(?, ?)",
+                names.stream().map(name -> new Object[]{name, companyId}).toList()
+        );
+    }
+
+    @Override
+    public CarSnapshot snapshotAllCars() {
+        CarSnapshot snapshot = new CarSnapshot(16);
+        boolean complete = scanQueryStatement(
+                "SELECT ID, NAME, COMPANY_ID FROM CAR ORDER BY ID",
+                (ResultSet rs) -> snapshot.append(rs.getInt(1), rs.getString(2), rs.getInt(3))
+        );
+        snapshot.seal();
+        return complete ? snapshot : null;
+    }
+
+    @Override
+    public CarSnapshot snapshotCarsByCompanyId(int companyId) {
+        CarSnapshot snapshot = new CarSnapshot(16);
+        boolean complete = scanQueryStatement(
+                "SELECT ID, NAME, COMPANY_ID FROM CAR WHERE COMPANY_ID = ? ORDER BY ID",
+                (ResultSet rs) -> snapshot.append(rs.getInt(1), rs.getString(2), rs.getInt(3)),
+                companyId
+        );
+        snapshot.seal();
+        return complete ? snapshot : null;
+    }
+
+    @Override
+    public List<Car> getCarsByCompanyId(int companyId) {
+        return executeQueryStatement(
+                "SELECT ID, NAME, COMPANY_ID FROM CAR WHERE COMPANY_ID = ?",
+                carCreator,
+                companyId
+        );
+    }
+
+    @Override
+    public Stream<Car> streamAllCars() {
+        return streamQueryStatement(
+                "SELECT ID, NAME, COMPANY_ID FROM CAR ORDER BY ID",
+                carCreator
+        );
+    }
+
+    @Override
+    public List<Car> getCarsPageByCompanyId(int companyId, int afterId, int limit) {
+        return executeQueryStatement(
+                "SELECT ID, NAME, COMPANY_ID FROM CAR WHERE COMPANY_ID = ? AND ID > ? ORDER BY ID LIMIT ?",
+                carCreator,
+                companyId,
+                afterId,
+                limit
+        );
+    }
+
+    @Override
+    public List<Car> getAvailableCarsByCompanyId(int companyId) {
+        return executeQueryStatement(
+                "SELECT CAR.ID as ID, CAR.NAME as NAME, CAR.COMPANY_ID as COMPANY_ID FROM CAR " +
+                        "LEFT JOIN CUSTOMER ON CUSTOMER.RENTED_CAR_ID = CAR.ID " +
+                        "WHERE CAR.COMPANY_ID = ? AND CUSTOMER.ID IS NULL",
+                carCreator,
+                companyId
+        );
+    }
+
+    @Override
+    public List<Car> getAvailableCarsPageByCompanyId(int companyId, int afterId, int limit) {
+        return executeQueryStatement(
+                "SELECT CAR.ID as ID, CAR.NAME as NAME, CAR.COMPANY_ID as COMPANY_ID FROM CAR " +
+                        "LEFT JOIN CUSTOMER ON CUSTOMER.RENTED_CAR_ID = CAR.ID " +
+                        "WHERE CAR.COMPANY_ID = ? AND CUSTOMER.ID IS NULL AND CAR.ID > ? " +
+                        "ORDER BY CAR.ID LIMIT ?",
+                carCreator,
+                companyId,
+                afterId,
+                limit
+        );
+    }
+
+    @Override
+    public Car getCarById(int id) {
+        List<Car> result =executeQueryStatement(
+                "SELECT ID, NAME, COMPANY_ID FROM CAR WHERE ID = ? LIMIT 1",
+                carCreator,
+                id
+        );
+
+        return result == null || result.isEmpty() ? null : result.get(0);
+    }
+
+    @Override
+    public Car getCarByName(String name) {
+        List<Car> result =executeQueryStatement(
+                "SELECT ID, NAME, COMPANY_ID FROM CAR WHERE NAME = ? LIMIT 1",
+                carCreator,
+                name
+        );
+
+        return result == null || result.isEmpty() ? null : result.get(0);
+    }
+}
+
+class Customer {
+    final private int id;
+
+    final private String name;
+
+    private final Integer rentedCarId;
+
+    private final Instant rentedAt;
+
+    Customer(int id, String name, Integer rentedCarId) {
+        this(id, name, rentedCarId, null);
+    }
+
+    Customer(int id, String name, Integer rentedCarId, Instant rentedAt) {
+        this.id = id;
+        this.name = name;
+        this.rentedCarId = rentedCarId;
+        this.rentedAt = rentedAt;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public Integer getRentedCarId() {
+        return rentedCarId;
+    }
+
+    public Instant getRentedAt() {
+        return rentedAt;
+    }
+}
+
+enum RentResult {
+    RENTED,
+    CAR_TAKEN,
+    ALREADY_RENTING,
+    FAILED
+}
+
+interface ICustomerDao {
+    Customer createCustomer(String name);
+
+    List<Integer> createCustomers(Collection<String> names);
+
+    void setCustomerRentedCarId(String name, Integer rentedCarId);
+
+    void setCustomerRentedCarId(int customerId, Integer rentedCarId);
+
+    RentResult rentCar(int customerId, int carId);
+
+    boolean returnCar(int customerId);
+
+    Customer getCustomerByName(String name);
+
+    Customer getCustomerById(int id);
+
+    CustomerRental getCustomerRental(int customerId);
+
+    List<Customer> getAllCustomers();
+
+    Stream<Customer> streamAllCustomers();
+
+    List<Customer> getCustomersPage(int afterId, int limit);
+
+    CustomerSnapshot snapshotAllCustomers();
+}
+
+class CustomerDao extends DbClient<Customer> implements ICustomerDao {
+
+    static private final ObjectInstanceCreator<Customer> customerCreator = (ResultSet rs) -> new Customer(
+            rs.getInt("ID"),
+            rs.getString("NAME"),
+            rs.getInt("RENTED_CAR_ID") == 0 ? null : rs.getInt("RENTED_CAR_ID"),
+            rs.getTimestamp("RENTED_AT") == null ? null : rs.getTimestamp("RENTED_AT").toInstant()
+    );
+
+    static private final int MAX_RENT_ATTEMPTS = 3;
+
+    private final RentalHistoryDao rentalHistory;
+
+    private final CustomerRentalDao customerRentals;
+
+    CustomerDao(ConnectionPool connectionPool) {
+        this(connectionPool, new RentalHistoryDao(connectionPool));
+    }
+
+    CustomerDao(ConnectionPool connectionPool, RentalHistoryDao rentalHistory) {
+        super(connectionPool);
+        this.rentalHistory = rentalHistory;
+        this.customerRentals = new CustomerRentalDao(connectionPool);
+    }
+
+    static public ObjectInstanceCreator<Customer> getCustomerCreator() {
+        return customerCreator;
+    }
+
+    static boolean isConstraintViolation(SQLException se) {
+        // 23505 unique violation: the car is rented by someone else, 23506 referential violation: the car is gone
+        return "23505".equals(se.getSQLState()) || "23506".equals(se.getSQLState());
+    }
+
+    static private boolean isTransient(SQLException se) {
+        String state = se.getSQLState();
+        return se instanceof SQLTransientException ||
+                (state != null && (state.startsWith("40") || state.equals("HYT00")));
+    }
+
+    @Override
+    public Customer createCustomer(String name) {
+        Integer id = executeInsertStatement("INSERT INTO CUSTOMER(NAME) VALUES(?)", name);
+        return id == null ? null : new Customer(id, name, null);
+    }
+
+    @Override
+    public List<Integer> createCustomers(Collection<String> names) {
+        return executeBatchInsertStatement(
+                "INSERT INTO CUSTOMER(NAME) VALUES(?)",
+                names.stream().map(name -> new Object[]{name}).toList()
+        );
+    }
+
+    private Customer findCustomer(PooledConnection conn, String column, Object value) throws SQLException {
+        List<Customer> result = conn.executeQuery(
+                "SELECT ID, NAME, RENTED_CAR_ID, RENTED_AT FROM CUSTOMER WHERE " + column + " = ?",
+                customerCreator,
+                value
+        );
+        return result == null || result.isEmpty() ? null : result.get(0);
+    }
+
+    // runs the update and writes its history events in one transaction
+    private int updateWithHistory(PooledConnection conn, List<RentalEvent> events, String sql, Object... args) throws SQLException {
+        rentalHistory.ensureBuckets(conn, events);
+        Connection connection = conn.getConnection();
+        connection.setAutoCommit(false);
+        try {
+            int updated = conn.executeUpdate(sql, args);
+            if(updated == 1) rentalHistory.recordEvents(conn, events);
+            connection.commit();
+            return updated;
+        } catch (SQLException se) {
+            connection.rollback();
+            throw se;
+        }
+    }
+
+    @Override
+    public void setCustomerRentedCarId(String name, Integer rentedCarId) {
+        setRentedCarId("NAME", name, rentedCarId);
+    }
+
+    @Override
+    public void setCustomerRentedCarId(int customerId, Integer rentedCarId) {
+        setRentedCarId("ID", customerId, rentedCarId);
+    }
+
+    private void setRentedCarId(String column, Object value, Integer rentedCarId) {
+        try (PooledConnection conn = getConnectionPool().borrow()) {
+            Customer customer = findCustomer(conn, column, value);
+            if(customer == null) return;
+            Instant now = Instant.now();
+            List<RentalEvent> events = new ArrayList<>();
+            if(customer.getRentedCarId() != null) {
+                events.add(RentalEvent.returned(customer.getId(), customer.getRentedCarId(), customer.getRentedAt(), now));
+            }
+            if(rentedCarId != null) {
+                events.add(RentalEvent.rent(customer.getId(), rentedCarId, now));
+            }
+            updateWithHistory(
+                    conn,
+                    events,
+                    "UPDATE CUSTOMER SET RENTED_CAR_ID = ?, RENTED_AT = ? WHERE ID = ?",
+                    rentedCarId,
+                    rentedCarId == null ? null : Timestamp.from(now),
+                    customer.getId()
+            );
+        } catch (SQLException se) {
+            se.printStackTrace();
+        }
+    }
+
+    @Override
+    public RentResult rentCar(int customerId, int carId) {
+        for(int attempt = 1; ; attempt++) {
+            try (PooledConnection conn = getConnectionPool().borrow()) {
+                Instant now = Instant.now();
+                int updated = updateWithHistory(
+                        conn,
+                        List.of(RentalEvent.rent(customerId, carId, now)),
+                        "UPDATE CUSTOMER SET RENTED_CAR_ID = ?, RENTED_AT = ? WHERE ID = ? AND RENTED_CAR_ID IS NULL",
+                        carId,
+                        Timestamp.from(now),
+                        customerId
+                );
+                return updated == 1 ? RentResult.RENTED : RentResult.ALREADY_RENTING;
+            } catch (SQLException se) {
+                if(isConstraintViolation(se)) return RentResult.CAR_TAKEN;
+                if(!isTransient(se) || attempt == MAX_RENT_ATTEMPTS) {
+                    se.printStackTrace();
+                    return RentResult.FAILED;
+                }
+            }
+            try {
+                Thread.sleep(10L * attempt);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return RentResult.FAILED;
+            }
+        }
+    }
+
+    @Override
+    public boolean returnCar(int customerId) {
+        try (PooledConnection conn = getConnectionPool().borrow()) {
+            Customer customer = findCustomer(conn, "ID", customerId);
+            if(customer == null || customer.getRentedCarId() == null) return false;
+            return updateWithHistory(
+                    conn,
+                    List.of(RentalEvent.returned(customerId, customer.getRentedCarId(), customer.getRentedAt(), Instant.now())),
+                    "UPDATE CUSTOMER SET RENTED_CAR_ID = NULL, RENTED_AT = NULL WHERE ID = ? AND RENTED_CAR_ID = ?",
+                    customerId,
+                    customer.getRentedCarId()
+            ) == 1;
+        } catch (SQLException se) {
+            se.printStackTrace();
+        }
+        return false;
+    }
+
+    @Override
+    public Customer getCustomerByName(String name) {
+        List<Customer> result =executeQueryStatement(
+                "SELECT ID, NAME, RENTED_CAR_ID, RENTED_AT FROM CUSTOMER WHERE NAME = ? LIMIT 1",
+                customerCreator,
+                name
+        );
+
+        return result == null || result.isEmpty() ? null : result.get(0);
+    }
+
+    @Override
+    public Customer getCustomerById(int id) {
+        List<Customer> result = executeQueryStatement(
+                "SELECT ID, NAME, RENTED_CAR_ID, RENTED_AT FROM CUSTOMER WHERE ID = ?",
+                customerCreator,
+                id
+        );
+
+        return result == null || result.isEmpty() ? null : result.get(0);
+    }
+
+    @Override
+    public CustomerRental getCustomerRental(int customerId) {
+        return customerRentals.getCustomerRental(customerId);
+    }
+
+    @Override
+    public List<Customer> getAllCustomers() {
+        return executeQueryStatement(
+                "SELECT ID, NAME, RENTED_CAR_ID, RENTED_AT FROM CUSTOMER ORDER BY ID",
+                customerCreator
+        );
+    }
+
+    @Override
+    public Stream<Customer> streamAllCustomers() {
+        return streamQueryStatement(
+                "SELECT ID, NAME, RENTED_CAR_ID, RENTED_AT FROM CUSTOMER ORDER BY ID",
+                customerCreator
+        );
+    }
+
+    @Override
+    public CustomerSnapshot snapshotAllCustomers() {
+        CustomerSnapshot snapshot = new CustomerSnapshot(16);
+        boolean complete = scanQueryStatement(
+                "SELECT ID, NAME, RENTED_CAR_ID FROM CUSTOMER ORDER BY ID",
+                (ResultSet rs) -> snapshot.append(
+                        rs.getInt(1),
+                        rs.getString(2),
+                        rs.getInt(3) == 0 ? null : rs.getInt(3)
+                )
+        );
+        snapshot.seal();
+        return complete ? snapshot : null;
+    }
+
+    @Override
+    public List<Customer> getCustomersPage(int afterId, int limit) {
+        return executeQueryStatement(
+                "SELECT ID, NAME, RENTED_CAR_ID, RENTED_AT FROM CUSTOMER WHERE ID > ? ORDER BY ID LIMIT ?",
+                customerCreator,
+                afterId,
+                limit
+        );
+    }
+}
+
+// what the rented car screen shows, read in one round trip
+class CustomerRental {
+
+    private final Customer customer;
+
+    private final Car car;
+
+    private final Company company;
+
+    CustomerRental(Customer customer, Car car, Company company) {
+        this.customer = customer;
+        this.car = car;
+        this.company = company;
+    }
+
+    public Customer getCustomer() {
+        return customer;
+    }
+
+    // null when the customer has no rental
+    public Car getCar() {
+        return car;
+    }
+
+    public Company getCompany() {
+        return company;
+    }
+}
+
+class CustomerRentalDao extends DbClient<CustomerRental> {
+
+    static private final String SELECT_SQL = "SELECT CU.ID, CU.NAME, CU.RENTED_CAR_ID, CU.RENTED_AT, "
+            + "CA.ID AS CAR_ID, CA.NAME AS CAR_NAME, CO.ID AS COMPANY_ID, CO.NAME AS COMPANY_NAME "
+            + "FROM CUSTOMER CU "
+            + "LEFT JOIN CAR CA ON CA.ID = %s "
+            + "LEFT JOIN COMPANY CO ON CO.ID = CA.COMPANY_ID "
+            + "WHERE CU.ID = ?";
+
+    CustomerRentalDao(ConnectionPool connectionPool) {
+        super(connectionPool);
+    }
+
+    static private CustomerRental toCustomerRental(ResultSet rs, Customer customer) throws SQLException {
+        if(rs.getInt("CAR_ID") == 0) return new CustomerRental(customer, null, null);
+        return new CustomerRental(
+                customer,
+                new Car(rs.getInt("CAR_ID"), rs.getString("CAR_NAME"), rs.getInt("COMPANY_ID")),
+                new Company(rs.getInt("COMPANY_ID"), rs.getString("COMPANY_NAME"))
+        );
+    }
+
+    public CustomerRental getCustomerRental(int customerId) {
+        List<CustomerRental> result = executeQueryStatement(
+                String.format(SELECT_SQL, "CU.RENTED_CAR_ID"),
+                (ResultSet rs) -> toCustomerRental(rs, CustomerDao.getCustomerCreator().apply(rs)),
+                customerId
+        );
+        return result == null || result.isEmpty() ? null : result.get(0);
+    }
+
+    // joins the given rental instead of the stored one, for callers that are ahead of H2
+    public CustomerRental getCustomerRental(int customerId, Integer rentedCarId, Instant rentedAt) {
+        List<CustomerRental> result = executeQueryStatement(
+                String.format(SELECT_SQL, "?"),
+                (ResultSet rs) -> toCustomerRental(rs, new Customer(rs.getInt("ID"), rs.getString("NAME"), rentedCarId, rentedAt)),
+                rentedCarId,
+                customerId
+        );
+        return result == null || result.isEmpty() ? null : result.get(0);
+    }
+}
+
+class Reservation {
+
+    private final int id;
+
+    private final int carId;
+
+    private final int customerId;
+
+    private final Instant startsAt;
+
+    private final Instant endsAt;
+
+    Reservation(int id, int carId, int customerId, Instant startsAt, Instant endsAt) {
+        this.id = id;
+        this.carId = carId;
+        this.customerId = customerId;
+        this.startsAt = startsAt;
+        this.endsAt = endsAt;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getCarId() {
+        return carId;
+    }
+
+    public int getCustomerId() {
+        return customerId;
+    }
+
+    public Instant getStartsAt() {
+        return startsAt;
+    }
+
+    public Instant getEndsAt() {
+        return endsAt;
+    }
+}
+
+enum ReserveResult {
+    RESERVED,
+    CAR_TAKEN,
+    FAILED
+}
+
+interface IReservationDao {
+
+    // books [startsAt, endsAt) unless another booking of the car overlaps it
+    ReserveResult reserveCar(int customerId, int carId, Instant startsAt, Instant endsAt);
+
+    Stream<Reservation> streamReservationsEndingAfter(Instant at);
+
+    List<Reservation> getReservationsByCustomerId(int customerId, Instant endingAfter);
+}
+
+class ReservationDao extends DbClient<Reservation> implements IReservationDao {
+
+    static private final ObjectInstanceCreator<Reservation> reservationCreator = (ResultSet rs) -> new Reservation(
+            rs.getInt("ID"),
+            rs.getInt("CAR_ID"),
+            rs.getInt("CUSTOMER_ID"),
+            rs.getTimestamp("STARTS_AT").toInstant(),
+            rs.getTimestamp("ENDS_AT").toInstant()
+    );
+
+    static private final ObjectInstanceCreator<Integer> idCreator = (ResultSet rs) -> rs.getInt(1);
+
+    ReservationDao(ConnectionPool connectionPool) {
+        super(connectionPool);
+    }
+
+    @Override
+    public ReserveResult reserveCar(int customerId, int carId, Instant startsAt, Instant endsAt) {
+        try (PooledConnection conn = getConnectionPool().borrow()) {
+            Connection connection = conn.getConnection();
+            connection.setAutoCommit(false);
+            try {
+                // the car row lock makes two bookings of one car check for overlaps one after the other
+                if(conn.executeQuery("SELECT ID FROM CAR WHERE ID = ? FOR UPDATE", idCreator, carId).isEmpty()) {
+                    connection.rollback();
+                    return ReserveResult.FAILED;
+                }
+                List<Integer> overlapping = conn.executeQuery(
+                        "SELECT ID FROM RESERVATION WHERE CAR_ID = ? AND ENDS_AT > ? AND STARTS_AT < ? LIMIT 1",
+                        idCreator,
+                        carId,
+                        Timestamp.from(startsAt),
+                        Timestamp.from(endsAt)
+                );
+                if(!overlapping.isEmpty()) {
+                    connection.rollback();
+                    return ReserveResult.CAR_TAKEN;
+                }
+                conn.executeInsert(
+                        "INSERT INTO RESERVATION(CAR_ID, CUSTOMER_ID, STARTS_AT, ENDS_AT) VALUES (?, ?, ?, ?)",
+                        carId,
+                        customerId,
+                        Timestamp.from(startsAt),
+                        Timestamp.from(endsAt)
+                );
+                connection.commit();
+                return ReserveResult.RESERVED;
+            } catch (SQLException se) {
+                connection.rollback();
+                throw se;
+            }
+        } catch (SQLException se) {
+            se.printStackTrace();
+        }
+        return ReserveResult.FAILED;
+    }
+
+    @Override
+    public Stream<Reservation> streamReservationsEndingAfter(Instant at) {
+        return streamQueryStatement(
+                "SELECT ID, CAR_ID, CUSTOMER_ID, STARTS_AT, ENDS_AT FROM RESERVATION WHERE ENDS_AT > ?",
+                reservationCreator,
+                Timestamp.from(at)
+        );
+    }
+
+    @Override
+    public List<Reservation> getReservationsByCustomerId(int customerId, Instant endingAfter) {
+        return executeQueryStatement(
+                "SELECT ID, CAR_ID, CUSTOMER_ID, STARTS_AT, ENDS_AT FROM RESERVATION " +
+                        "WHERE CUSTOMER_ID = ? AND ENDS_AT > ? ORDER BY STARTS_AT",
+                reservationCreator,
+                customerId,
+                Timestamp.from(endingAfter)
+        );
+    }
+}
+
+class StringTable {
+
+    private Map<String, Integer> refs = new HashMap<>();
+
+    private String[] strings;
+
+    private int size;
+
+    StringTable(int expectedSize) {
+        strings = new String[Math.max(4, expectedSize)];
+    }
+
+    public int intern(String value) {
+        if(refs == null) throw new IllegalStateException("The string table is sealed");
+        Integer ref = refs.get(value);
+        if(ref != null) return ref;
+        if(size == strings.length) strings = Arrays.copyOf(strings, size * 2);
+        strings[size] = value;
+        refs.put(value, size);
+        return size++;
+    }
+
+    public String get(int ref) {
+        return strings[ref];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void seal() {
+        refs = null;
+        strings = Arrays.copyOf(strings, size);
+    }
+}
+
+// rows are appended while a DAO fills it (in id order), after seal() it is read-only
+class ColumnarSnapshot {
+
+    protected int[] ids;
+
+    protected int[] nameRefs;
+
+    protected final StringTable names;
+
+    protected int size;
+
+    private boolean sealed;
+
+    ColumnarSnapshot(int expectedSize) {
+        ids = new int[Math.max(4, expectedSize)];
+        nameRefs = new int[ids.length];
+        names = new StringTable(expectedSize);
+    }
+
+    protected ColumnarSnapshot(ColumnarSnapshot source) {
+        ids = source.ids;
+        nameRefs = source.nameRefs;
+        names = source.names;
+        size = source.size;
+        sealed = true;
+    }
+
+    protected int appendRow(int id, String name) {
+        if(sealed) throw new IllegalStateException("The snapshot is sealed");
+        if(size == ids.length) grow(size * 2);
+        ids[size] = id;
+        nameRefs[size] = names.intern(name);
+        return size++;
+    }
+
+    protected void grow(int capacity) {
+        ids = Arrays.copyOf(ids, capacity);
+        nameRefs = Arrays.copyOf(nameRefs, capacity);
+    }
+
+    public void seal() {
+        if(sealed) return;
+        grow(size);
+        names.seal();
+        sealed = true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getId(int row) {
+        return ids[row];
+    }
+
+    public String getName(int row) {
+        return names.get(nameRefs[row]);
+    }
+
+    // only for snapshots filled in id order
+    public int indexOfId(int id) {
+        int row = Arrays.binarySearch(ids, 0, size, id);
+        return row >= 0 ? row : -1;
+    }
+}
+
+class NameSnapshot extends ColumnarSnapshot {
+
+    NameSnapshot(int expectedSize) {
+        super(expectedSize);
+    }
+
+    public void append(int id, String name) {
+        appendRow(id, name);
+    }
+}
+
+class CompanySnapshot extends NameSnapshot {
+
+    CompanySnapshot(int expectedSize) {
+        super(expectedSize);
+    }
+}
+
+class CarSnapshot extends ColumnarSnapshot {
+
+    private int[] companyIds;
+
+    CarSnapshot(int expectedSize) {
+        super(expectedSize);
+        companyIds = new int[ids.length];
+    }
+
+    public void append(int id, String name, int companyId) {
+        int row = appendRow(id, name);
+        companyIds[row] = companyId;
+    }
+
+    @Override
+    protected void grow(int capacity) {
+        super.grow(capacity);
+        companyIds = Arrays.copyOf(companyIds, capacity);
+    }
+
+    public int getCompanyId(int row) {
+        return companyIds[row];
+    }
+}
+
+class CustomerSnapshot extends ColumnarSnapshot {
+
+    // 0 when the customer has no car
+    private int[] rentedCarIds;
+
+    CustomerSnapshot(int expectedSize) {
+        super(expectedSize);
+        rentedCarIds = new int[ids.length];
+    }
+
+    private CustomerSnapshot(CustomerSnapshot source, int[] rentedCarIds) {
+        super(source);
+        this.rentedCarIds = rentedCarIds;
+    }
+
+    public void append(int id, String name, Integer rentedCarId) {
+        int row = appendRow(id, name);
+        rentedCarIds[row] = rentedCarId == null ? 0 : rentedCarId;
+    }
+
+    @Override
+    protected void grow(int capacity) {
+        super.grow(capacity);
+        rentedCarIds = Arrays.copyOf(rentedCarIds, capacity);
+    }
+
+    public Integer getRentedCarId(int row) {
+        return rentedCarIds[row] == 0 ? null : rentedCarIds[row];
+    }
+
+    // shares the id and name columns, only the rented car column is copied
+    public CustomerSnapshot withRentedCarIds(IntUnaryOperator rentedCarIdById) {
+        int[] overlaid = new int[size];
+        for(int row = 0; row < size; row++) {
+            overlaid[row] = rentedCarIdById.applyAsInt(ids[row]);
+        }
+        return new CustomerSnapshot(this, overlaid);
+    }
+}
+
+enum RentalEventType {
+    RENT,
+    RETURN,
+    USAGE
+}
+
+class RentalEvent {
+
+    final private RentalEventType type;
+
+    final private int customerId;
+
+    final private int carId;
+
+    private final Instant eventAt;
+
+    private final Instant startedAt;
+
+    RentalEvent(RentalEventType type, int customerId, int carId, Instant eventAt, Instant startedAt) {
+        this.type = type;
+        this.customerId = customerId;
+        this.carId = carId;
+        this.eventAt = eventAt;
+        this.startedAt = startedAt;
+    }
+
+    static RentalEvent rent(int customerId, int carId, Instant at) {
+        return new RentalEvent(RentalEventType.RENT, customerId, carId, at, at);
+    }
+
+    static RentalEvent returned(int customerId, int carId, Instant rentedAt, Instant at) {
+        return new RentalEvent(RentalEventType.RETURN, customerId, carId, at, rentedAt);
+    }
+
+    public RentalEventType getType() {
+        return type;
+    }
+
+    public int getCustomerId() {
+        return customerId;
+    }
+
+    public int getCarId() {
+        return carId;
+    }
+
+    public Instant getEventAt() {
+        return eventAt;
+    }
+
+    public Instant getStartedAt() {
+        return startedAt;
+    }
+}
+
+class Utilization {
+
+    final private int id;
+
+    final private String name;
+
+    private final long rentedSeconds;
+
+    private final int carCount;
+
+    private final long windowSeconds;
+
+    Utilization(int id, String name, long rentedSeconds, int carCount, long windowSeconds) {
+        this.id = id;
+        this.name = name;
+        this.rentedSeconds = rentedSeconds;
+        this.carCount = carCount;
+        this.windowSeconds = windowSeconds;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getRentedSeconds() {
+        return rentedSeconds;
+    }
+
+    public int getCarCount() {
+        return carCount;
+    }
+
+    public double getRatio() {
+        return carCount == 0 || windowSeconds == 0 ? 0 : (double) rentedSeconds / ((double) windowSeconds * carCount);
+    }
+}
+
+interface IRentalHistoryDao {
+    List<Utilization> getCompanyUtilization(Instant from, Instant to, int limit);
+
+    List<Utilization> getCarUtilization(int companyId, Instant from, Instant to, int limit);
+}
+
+// one table per UTC month, so a report only reads the months its window overlaps
+class RentalHistoryDao extends DbClient<Utilization> implements IRentalHistoryDao {
+
+    static private final String TABLE_PREFIX = "RENTAL_HISTORY_";
+
+    private final Set<YearMonth> buckets = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean bucketsLoaded;
+
+    RentalHistoryDao(ConnectionPool connectionPool) {
+        super(connectionPool);
+    }
+
+    static YearMonth bucketOf(Instant at) {
+        return YearMonth.from(at.atOffset(ZoneOffset.UTC));
+    }
+
+    static String tableOf(YearMonth bucket) {
+        return String.format(Locale.ROOT, "%s%04d%02d", TABLE_PREFIX, bucket.getYear(), bucket.getMonthValue());
+    }
+
+    static Instant startOf(YearMonth bucket) {
+        return bucket.atDay(1).atStartOfDay(ZoneOffset.UTC).toInstant();
+    }
+
+    static private Timestamp timestamp(Instant at) {
+        return at == null ? null : Timestamp.from(at);
+    }
+
+    private void loadBuckets(PooledConnection conn) throws SQLException {
+        if(bucketsLoaded) return;
+        List<String> tables = conn.executeQuery(
+                "SELECT TABLE_NAME FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_NAME LIKE ?",
+                (ResultSet rs) -> rs.getString(1),
+                TABLE_PREFIX + "%"
+        );
+        for(String table: tables) {
+            String suffix = table.substring(TABLE_PREFIX.length());
+            buckets.add(YearMonth.of(Integer.parseInt(suffix.substring(0, 4)), Integer.parseInt(suffix.substring(4))));
+        }
+        bucketsLoaded = true;
+    }
+
+    // DDL commits in H2, so callers run this before they open a transaction
+    public void ensureBuckets(PooledConnection conn, Instant from, Instant to) throws SQLException {
+        loadBuckets(conn);
+        for(YearMonth bucket = bucketOf(from); !bucket.isAfter(bucketOf(to)); bucket = bucket.plusMonths(1)) {
+            if(buckets.contains(bucket)) continue;
+            try (Statement statement = conn.getConnection().createStatement()) {
+                statement.execute(
+                        "CREATE TABLE IF NOT EXISTS " + tableOf(bucket) + "(" +
+                                "ID BIGINT AUTO_INCREMENT PRIMARY KEY," +
+                                "EVENT_TYPE VARCHAR(6) NOT NULL," +
+                                "CUSTOMER_ID INT NOT NULL," +
+                                "CAR_ID INT NOT NULL," +
+                                "COMPANY_ID INT NOT NULL," +
+                                "EVENT_AT TIMESTAMP NOT NULL," +
+                                "STARTED_AT TIMESTAMP," +
+                                "ENDED_AT TIMESTAMP," +
+                                "UNIQUE(CUSTOMER_ID, EVENT_TYPE, EVENT_AT)" +
+                                ")"
+                );
+            }
+            buckets.add(bucket);
+        }
+    }
+
+    public void ensureBuckets(PooledConnection conn, List<RentalEvent> events) throws SQLException {
+        for(RentalEvent event: events) {
+            Instant from = event.getStartedAt() == null ? event.getEventAt() : event.getStartedAt();
+            ensureBuckets(conn, from, event.getEventAt());
+        }
+    }
+
+    private void merge(PooledConnection conn, YearMonth bucket, RentalEventType type, RentalEvent event, Instant startedAt, Instant endedAt) throws SQLException {
+        // keyed on customer, type and time so replaying the same event twice is harmless
+        conn.executeUpdate(
+                "MERGE INTO " + tableOf(bucket) +
+                        "(EVENT_TYPE, CUSTOMER_ID, CAR_ID, COMPANY_ID, EVENT_AT, STARTED_AT, ENDED_AT) " +
+                        "KEY(CUSTOMER_ID, EVENT_TYPE, EVENT_AT) " +
+                        "SELECT ?, ?, ID, COMPANY_ID, ?, ?, ? FROM CAR WHERE ID = ?",
+                type.name(),
+                event.getCustomerId(),
+                timestamp(event.getEventAt()),
+                timestamp(startedAt),
+                timestamp(endedAt),
+                event.getCarId()
+        );
+    }
+
+    // writes on the caller's connection so the events commit with the rental change, buckets must already exist
+    public void recordEvents(PooledConnection conn, List<RentalEvent> events) throws SQLException {
+        for(RentalEvent event: events) {
+            YearMonth eventBucket = bucketOf(event.getEventAt());
+            if(event.getType() == RentalEventType.RENT) {
+                merge(conn, eventBucket, RentalEventType.RENT, event, event.getEventAt(), null);
+                continue;
+            }
+            merge(conn, eventBucket, RentalEventType.RETURN, event, event.getStartedAt(), event.getEventAt());
+            if(event.getStartedAt() == null) continue;
+            // the rental is split at month boundaries so each bucket holds its own share of the usage
+            for(YearMonth bucket = bucketOf(event.getStartedAt()); !bucket.isAfter(eventBucket); bucket = bucket.plusMonths(1)) {
+                Instant start = startOf(bucket).isAfter(event.getStartedAt()) ? startOf(bucket) : event.getStartedAt();
+                Instant end = startOf(bucket.plusMonths(1)).isBefore(event.getEventAt()) ? startOf(bucket.plusMonths(1)) : event.getEventAt();
+                merge(conn, bucket, RentalEventType.USAGE, event, start, end);
+            }
+        }
+    }
+
+    public boolean recordEvents(List<RentalEvent> events) {
+        if(events.isEmpty()) return true;
+        try (PooledConnection conn = getConnectionPool().borrow()) {
+            ensureBuckets(conn, events);
+            Connection connection = conn.getConnection();
+            connection.setAutoCommit(false);
+            try {
+                recordEvents(conn, events);
+                connection.commit();
+                return true;
+            } catch (SQLException se) {
+                connection.rollback();
+                throw se;
+            }
+        } catch (SQLException se) {
+            se.printStackTrace();
+        }
+        return false;
+    }
+
+    private String usageSql(Instant from, Instant to, Integer companyId, List<Object> args) {
+        StringJoiner segments = new StringJoiner(" UNION ALL ");
+        for(YearMonth bucket = bucketOf(from); !bucket.isAfter(bucketOf(to)); bucket = bucket.plusMonths(1)) {
+            if(!buckets.contains(bucket)) continue;
+            segments.add(
+                    "SELECT COMPANY_ID, CAR_ID, STARTED_AT, ENDED_AT FROM " + tableOf(bucket) +
+                            " WHERE EVENT_TYPE = 'USAGE' AND ENDED_AT > ? AND STARTED_AT < ?" +
+                            (companyId == null ? "" : " AND COMPANY_ID = ?")
+            );
+            args.add(timestamp(from));
+            args.add(timestamp(to));
+            if(companyId != null) args.add(companyId);
+        }
+        // rentals that are still open have no usage rows yet
+        segments.add(
+                "SELECT CAR.COMPANY_ID AS COMPANY_ID, CAR.ID AS CAR_ID, CUSTOMER.RENTED_AT AS STARTED_AT, " +
+                        "CAST(? AS TIMESTAMP) AS ENDED_AT FROM CUSTOMER " +
+                        "JOIN CAR ON CAR.ID = CUSTOMER.RENTED_CAR_ID WHERE CUSTOMER.RENTED_AT < ?" +
+                        (companyId == null ? "" : " AND CAR.COMPANY_ID = ?")
+        );
+        args.add(timestamp(Instant.now()));
+        args.add(timestamp(to));
+        if(companyId != null) args.add(companyId);
+        return segments.toString();
+    }
+
+    private List<Utilization> queryUtilization(String keyColumn, String sql, Instant from, Instant to, Integer companyId, int limit) {
+        long windowSeconds = Duration.between(from, to).getSeconds();
+        List<Object> args = new ArrayList<>(List.of(timestamp(from), timestamp(to)));
+        try (PooledConnection conn = getConnectionPool().borrow()) {
+            loadBuckets(conn);
+        } catch (SQLException se) {
+            se.printStackTrace();
+            return null;
+        }
+        String usage = "SELECT " + keyColumn + ", " +
+                "SUM(GREATEST(0, DATEDIFF(SECOND, GREATEST(STARTED_AT, ?), LEAST(ENDED_AT, ?)))) AS RENTED_SECONDS " +
+                "FROM (" + usageSql(from, to, companyId, args) + ") GROUP BY " + keyColumn;
+        if(companyId != null) args.add(companyId);
+        args.add(limit);
+        return executeQueryStatement(
+                String.format(sql, usage),
+                (ResultSet rs) -> new Utilization(
+                        rs.getInt("ID"),
+                        rs.getString("NAME"),
+                        rs.getLong("RENTED_SECONDS"),
+                        rs.getInt("CAR_COUNT"),
+                        windowSeconds
+                ),
+                args.toArray()
+        );
+    }
+
+    @Override
+    public List<Utilization> getCompanyUtilization(Instant from, Instant to, int limit) {
+        return queryUtilization(
+                "COMPANY_ID",
+                "SELECT COMPANY.ID, COMPANY.NAME, COALESCE(U.RENTED_SECONDS, 0) AS RENTED_SECONDS, " +
+                        "(SELECT COUNT(*) FROM CAR WHERE CAR.COMPANY_ID = COMPANY.ID) AS CAR_COUNT " +
+                        "FROM COMPANY LEFT JOIN (%s) U ON U.COMPANY_ID = COMPANY.ID " +
+                        "ORDER BY RENTED_SECONDS DESC, COMPANY.ID LIMIT ?",
+                from,
+                to,
+                null,
+                limit
+        );
+    }
+
+    @Override
+    public List<Utilization> getCarUtilization(int companyId, Instant from, Instant to, int limit) {
+        return queryUtilization(
+                "CAR_ID",
+                "SELECT CAR.ID, CAR.NAME, COALESCE(U.RENTED_SECONDS, 0) AS RENTED_SECONDS, 1 AS CAR_COUNT " +
+                        "FROM CAR LEFT JOIN (%s) U ON U.CAR_ID = CAR.ID " +
+                        "WHERE CAR.COMPANY_ID = ? ORDER BY RENTED_SECONDS DESC, CAR.ID LIMIT ?",
+                from,
+                to,
+                companyId,
+                limit
+        );
+    }
+}
+
+// names in sorted arrays for binary search, new names go to a small sorted overflow merged in once it fills up
+class NamePrefixIndex {
+
+    static private final int OVERFLOW_LIMIT = 4_096;
+
+    private String[] names = new String[0];
+
+    private int[] ids = new int[0];
+
+    private final TreeMap<String, Integer> overflow = new TreeMap<>();
+
+    private volatile boolean ready;
+
+    // sorts outside the lock, names added meanwhile stay in overflow and win over the snapshot
+    public void rebuild(ColumnarSnapshot snapshot) {
+        int[] order = IntStream.range(0, snapshot.size())
+                .boxed()
+                .sorted(Comparator.comparing(snapshot::getName))
+                .mapToInt(Integer::intValue)
+                .toArray();
+        String[] sortedNames = new String[order.length];
+        int[] sortedIds = new int[order.length];
+        for(int i = 0; i < order.length; i++) {
+            sortedNames[i] = snapshot.getName(order[i]);
+            sortedIds[i] = snapshot.getId(order[i]);
+        }
+        synchronized (this) {
+            names = sortedNames;
+            ids = sortedIds;
+            if(overflow.size() > OVERFLOW_LIMIT) mergeOverflow();
+        }
+        ready = true;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public synchronized void add(int id, String name) {
+        overflow.put(name, id);
+        if(overflow.size() > OVERFLOW_LIMIT) mergeOverflow();
+    }
+
+    public synchronized int size() {
+        return names.length + overflow.size();
+    }
+
+    private void mergeOverflow() {
+        String[] mergedNames = new String[names.length + overflow.size()];
+        int[] mergedIds = new int[mergedNames.length];
+        int size = 0;
+        int i = 0;
+        for(Map.Entry<String, Integer> entry: overflow.entrySet()) {
+            while(i < names.length && names[i].compareTo(entry.getKey()) < 0) {
+                mergedNames[size] = names[i];
+                mergedIds[size++] = ids[i++];
+            }
+            // names are unique, a re-added name replaces the old entry
+            if(i < names.length && names[i].equals(entry.getKey())) i++;
+            mergedNames[size] = entry.getKey();
+            mergedIds[size++] = entry.getValue();
+        }
+        while(i < names.length) {
+            mergedNames[size] = names[i];
+            mergedIds[size++] = ids[i++];
+        }
+        names = Arrays.copyOf(mergedNames, size);
+        ids = Arrays.copyOf(mergedIds, size);
+        overflow.clear();
+    }
+
+    private int lowerBound(String prefix) {
+        int low = 0;
+        int high = names.length;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(names[mid].compareTo(prefix) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // up to limit names starting with prefix in name order, filter may be null
+    public synchronized NameSnapshot search(String prefix, int limit, IntPredicate filter) {
+        NameSnapshot matches = new NameSnapshot(limit);
+        int i = lowerBound(prefix);
+        Iterator<Map.Entry<String, Integer>> recent = overflow.tailMap(prefix, true).entrySet().iterator();
+        Map.Entry<String, Integer> next = recent.hasNext() ? recent.next() : null;
+        while(matches.size() < limit) {
+            String sortedName = i < names.length && names[i].startsWith(prefix) ? names[i] : null;
+            String recentName = next != null && next.getKey().startsWith(prefix) ? next.getKey() : null;
+            if(sortedName == null && recentName == null) break;
+            if(recentName == null || (sortedName != null && sortedName.compareTo(recentName) < 0)) {
+                if(filter == null || filter.test(ids[i])) matches.append(ids[i], sortedName);
+                i++;
+            } else {
+                if(recentName.equals(sortedName)) i++;
+                if(filter == null || filter.test(next.getValue())) matches.append(next.getValue(), recentName);
+                next = recent.hasNext() ? recent.next() : null;
+            }
+        }
+        matches.seal();
+        return matches;
+    }
+}
+
+class SearchIndexes {
+
+    private final NamePrefixIndex companies = new NamePrefixIndex();
+
+    private final NamePrefixIndex cars = new NamePrefixIndex();
+
+    private final NamePrefixIndex customers = new NamePrefixIndex();
+
+    // the three tables are read in parallel, each index is searchable as soon as its own table is in
+    public CompletableFuture<Void> rebuildAsync(IAsyncCompanyDao companyDao, IAsyncCarDao carDao, IAsyncCustomerDao customerDao) {
+        return CompletableFuture.allOf(
+                companyDao.snapshotAllCompanies().thenAccept(snapshot -> {
+                    if(snapshot != null) companies.rebuild(snapshot);
+                }),
+                carDao.snapshotAllCars().thenAccept(snapshot -> {
+                    if(snapshot != null) cars.rebuild(snapshot);
+                }),
+                customerDao.snapshotAllCustomers().thenAccept(snapshot -> {
+                    if(snapshot != null) customers.rebuild(snapshot);
+                })
+        );
+    }
+
+    public int size() {
+        return companies.size() + cars.size() + customers.size();
+    }
+
+    // searchable before the database is read, a rebuild from the database replaces what the file had
+    public int warm(Path snapshotPath) throws IOException {
+        CompanySnapshot companyNames = new CompanySnapshot(16);
+        CarSnapshot carNames = new CarSnapshot(16);
+        CustomerSnapshot customerNames = new CustomerSnapshot(16);
+        int rows = SnapshotFile.read(snapshotPath, new SnapshotVisitor() {
+            @Override
+            public void company(int id, String name) {
+                companyNames.append(id, name);
+            }
+
+            @Override
+            public void car(int id, String name, int companyId) {
+                carNames.append(id, name, companyId);
+            }
+
+            @Override
+            public void customer(int id, String name, int rentedCarId, Instant rentedAt) {
+                customerNames.append(id, name, rentedCarId == 0 ? null : rentedCarId);
+            }
+        });
+        companyNames.seal();
+        carNames.seal();
+        customerNames.seal();
+        companies.rebuild(companyNames);
+        cars.rebuild(carNames);
+        customers.rebuild(customerNames);
+        return rows;
+    }
+
+    public void rebuild(ICompanyDao companyDao, ICarDao carDao, ICustomerDao customerDao) {
+        CompanySnapshot allCompanies = companyDao.snapshotAllCompanies();
+        if(allCompanies != null) companies.rebuild(allCompanies);
+        CarSnapshot allCars = carDao.snapshotAllCars();
+        if(allCars != null) cars.rebuild(allCars);
+        CustomerSnapshot allCustomers = customerDao.snapshotAllCustomers();
+        if(allCustomers != null) customers.rebuild(allCustomers);
+    }
+
+    public NamePrefixIndex getCompanies() {
+        return companies;
+    }
+
+    public NamePrefixIndex getCars() {
+        return cars;
+    }
+
+    public NamePrefixIndex getCustomers() {
+        return customers;
+    }
+}
+
+class IntHashSet {
+
+    // ids are positive, so 0 marks a free slot
+    static private final int EMPTY = 0;
+
+    private int[] slots;
+
+    private int size;
+
+    IntHashSet() {
+        this(16);
+    }
+
+    IntHashSet(int expectedSize) {
+        slots = new int[Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1];
+    }
+
+    static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int slotOf(int key) {
+        int mask = slots.length - 1;
+        int slot = mix(key) & mask;
+        while(slots[slot] != EMPTY && slots[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    public boolean add(int key) {
+        int slot = slotOf(key);
+        if(slots[slot] == key) return false;
+        slots[slot] = key;
+        if(++size * 2 > slots.length) resize(slots.length << 1);
+        return true;
+    }
+
+    public boolean contains(int key) {
+        return slots[slotOf(key)] == key;
+    }
+
+    public boolean remove(int key) {
+        int mask = slots.length - 1;
+        int slot = slotOf(key);
+        if(slots[slot] != key) return false;
+        slots[slot] = EMPTY;
+        size--;
+        // shift back the rest of the probe chain so lookups never stop at the hole
+        int next = (slot + 1) & mask;
+        while(slots[next] != EMPTY) {
+            int moved = slots[next];
+            slots[next] = EMPTY;
+            slots[slotOf(moved)] = moved;
+            next = (next + 1) & mask;
+        }
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(slots, EMPTY);
+        size = 0;
+    }
+
+    public int[] toSortedArray() {
+        int[] result = new int[size];
+        int i = 0;
+        for(int key: slots) {
+            if(key != EMPTY) result[i++] = key;
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    private void resize(int capacity) {
+        int[] old = slots;
+        slots = new int[capacity];
+        for(int key: old) {
+            if(key != EMPTY) slots[slotOf(key)] = key;
+        }
+    }
+}
+
+class IntObjectHashMap<V> {
+
+    static private final int EMPTY = 0;
+
+    private int[] keys;
+
+    private Object[] values;
+
+    private int size;
+
+    IntObjectHashMap() {
+        this(16);
+    }
+
+    IntObjectHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        keys = new int[capacity];
+        values = new Object[capacity];
+    }
+
+    private int slotOf(int key) {
+        int mask = keys.length - 1;
+        int slot = IntHashSet.mix(key) & mask;
+        while(keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int slot = slotOf(key);
+        return keys[slot] == key ? (V) values[slot] : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        int slot = slotOf(key);
+        if(keys[slot] == key) {
+            V previous = (V) values[slot];
+            values[slot] = value;
+            return previous;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if(++size * 2 > keys.length) resize(keys.length << 1);
+        return null;
+    }
+
+    public V computeIfAbsent(int key, IntFunction<V> factory) {
+        V value = get(key);
+        if(value == null) {
+            value = factory.apply(key);
+            put(key, value);
+        }
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        int mask = keys.length - 1;
+        int slot = slotOf(key);
+        if(keys[slot] != key) return null;
+        V previous = (V) values[slot];
+        keys[slot] = EMPTY;
+        values[slot] = null;
+        size--;
+        int next = (slot + 1) & mask;
+        while(keys[next] != EMPTY) {
+            int movedKey = keys[next];
+            Object movedValue = values[next];
+            keys[next] = EMPTY;
+            values[next] = null;
+            int target = slotOf(movedKey);
+            keys[target] = movedKey;
+            values[target] = movedValue;
+            next = (next + 1) & mask;
+        }
+        return previous;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEachValue(Consumer<V> action) {
+        for(int i = 0; i < keys.length; i++) {
+            if(keys[i] != EMPTY) action.accept((V) values[i]);
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(keys, EMPTY);
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new int[capacity];
+        values = new Object[capacity];
+        for(int i = 0; i < oldKeys.length; i++) {
+            if(oldKeys[i] != EMPTY) {
+                int slot = slotOf(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
+
+// companies are loaded the first time they are asked for, so startup does not scan CAR
+class AvailabilityIndex {
+
+    static private final int MAX_LOAD_ATTEMPTS = 3;
+
+    private final IntFunction<List<Car>> availableCarsLoader;
+
+    private final IntObjectHashMap<Car> cars = new IntObjectHashMap<>();
+
+    private final IntObjectHashMap<IntHashSet> freeCarIdsByCompany = new IntObjectHashMap<>();
+
+    // counts rentals and returns, a load that overlapped one of them may have missed it and is redone
+    private long changes;
+
+    AvailabilityIndex(IntFunction<List<Car>> availableCarsLoader) {
+        this.availableCarsLoader = availableCarsLoader;
+    }
+
+    // loads outside the lock so other companies stay usable, under constant churn the last attempt holds it,
+    // a failed load is not kept and is retried next time
+    private IntHashSet freeCarIds(int companyId) {
+        for(int attempt = 1; attempt < MAX_LOAD_ATTEMPTS; attempt++) {
+            long changesBefore;
+            synchronized (this) {
+                IntHashSet freeCarIds = freeCarIdsByCompany.get(companyId);
+                if(freeCarIds != null) return freeCarIds;
+                changesBefore = changes;
+            }
+            List<Car> availableCars = availableCarsLoader.apply(companyId);
+            if(availableCars == null) return new IntHashSet(0);
+            synchronized (this) {
+                IntHashSet freeCarIds = freeCarIdsByCompany.get(companyId);
+                if(freeCarIds != null) return freeCarIds;
+                if(changes == changesBefore) return install(companyId, availableCars);
+            }
+        }
+        synchronized (this) {
+            IntHashSet freeCarIds = freeCarIdsByCompany.get(companyId);
+            if(freeCarIds != null) return freeCarIds;
+            List<Car> availableCars = availableCarsLoader.apply(companyId);
+            if(availableCars == null) return new IntHashSet(0);
+            return install(companyId, availableCars);
+        }
+    }
+
+    private IntHashSet install(int companyId, List<Car> availableCars) {
+        IntHashSet freeCarIds = new IntHashSet(availableCars.size());
+        for(Car car: availableCars) {
+            cars.put(car.getId(), car);
+            freeCarIds.add(car.getId());
+        }
+        freeCarIdsByCompany.put(companyId, freeCarIds);
+        return freeCarIds;
+    }
+
+    // a company that is not loaded yet picks its cars up from the loader
+    public synchronized void addCar(Car car) {
+        IntHashSet freeCarIds = freeCarIdsByCompany.get(car.getCompanyId());
+        if(freeCarIds == null) return;
+        cars.put(car.getId(), car);
+        freeCarIds.add(car.getId());
+    }
+
+    public synchronized void markRented(int carId) {
+        changes++;
+        Car car = cars.get(carId);
+        if(car == null) return;
+        IntHashSet freeCarIds = freeCarIdsByCompany.get(car.getCompanyId());
+        if(freeCarIds != null) freeCarIds.remove(carId);
+    }
+
+    public synchronized void markReturned(Car car) {
+        changes++;
+        addCar(car);
+    }
+
+    public boolean isAvailable(int companyId, int carId) {
+        IntHashSet freeCarIds = freeCarIds(companyId);
+        synchronized (this) {
+            return freeCarIds.contains(carId);
+        }
+    }
+
+    public CarSnapshot snapshotAvailableCars(int companyId) {
+        IntHashSet freeCarIds = freeCarIds(companyId);
+        synchronized (this) {
+            int[] sorted = freeCarIds.toSortedArray();
+            CarSnapshot snapshot = new CarSnapshot(sorted.length);
+            for(int carId: sorted) {
+                snapshot.append(carId, cars.get(carId).getName(), companyId);
+            }
+            snapshot.seal();
+            return snapshot;
+        }
+    }
+}
+
+// one car's bookings sorted by start, as epoch millis; they never overlap, so the only one that can
+// reach into a window is the last one starting before the window ends
+class CarSchedule {
+
+    private long[] starts = new long[4];
+
+    private long[] ends = new long[4];
+
+    private int size;
+
+    private int countStartingBefore(long millis) {
+        int low = 0;
+        int high = size;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(starts[mid] < millis) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    public boolean isFree(long from, long to) {
+        int before = countStartingBefore(to);
+        return before == 0 || ends[before - 1] <= from;
+    }
+
+    // false when the window overlaps a booking, which also makes adding the same booking twice a no-op
+    public boolean add(long from, long to) {
+        if(!isFree(from, to)) return false;
+        int row = countStartingBefore(to);
+        if(size == starts.length) {
+            starts = Arrays.copyOf(starts, size * 2);
+            ends = Arrays.copyOf(ends, size * 2);
+        }
+        System.arraycopy(starts, row, starts, row + 1, size - row);
+        System.arraycopy(ends, row, ends, row + 1, size - row);
+        starts[row] = from;
+        ends[row] = to;
+        size++;
+        return true;
+    }
+
+    // bookings do not overlap, so sorted by start they are sorted by end too and the ended ones form a prefix
+    public int pruneEndedBy(long millis) {
+        int ended = 0;
+        while(ended < size && ends[ended] <= millis) ended++;
+        if(ended == 0) return 0;
+        System.arraycopy(starts, ended, starts, 0, size - ended);
+        System.arraycopy(ends, ended, ends, 0, size - ended);
+        size -= ended;
+        return ended;
+    }
+
+    public int size() {
+        return size;
+    }
+}
+
+// bookings that had not ended at startup plus the ones made since, loaded in the background
+class ReservationIndex {
+
+    private final IntObjectHashMap<CarSchedule> schedules = new IntObjectHashMap<>();
+
+    private volatile CompletableFuture<Void> loaded = CompletableFuture.completedFuture(null);
+
+    private IReservationDao reservationDao;
+
+    private int reservationCount;
+
+    public CompletableFuture<Void> rebuildAsync(IReservationDao reservationDao, Executor executor) {
+        this.reservationDao = reservationDao;
+        loaded = CompletableFuture.runAsync(() -> rebuild(reservationDao), executor);
+        return loaded;
+    }
+
+    public void rebuild(IReservationDao reservationDao) {
+        try (Stream<Reservation> reservations = reservationDao.streamReservationsEndingAfter(Instant.now())) {
+            reservations.forEach(reservation -> add(reservation.getCarId(), reservation.getStartsAt(), reservation.getEndsAt()));
+        }
+        // bookings that ended while the load ran
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            schedules.forEachValue(schedule -> reservationCount -= schedule.pruneEndedBy(now));
+        }
+    }
+
+    // false when neither the background load nor a synchronous retry got through, the index then holds what did load
+    public boolean awaitLoaded() {
+        CompletableFuture<Void> current = loaded;
+        try {
+            current.join();
+            return true;
+        } catch (CompletionException | CancellationException e) {
+            return reload(current);
+        }
+    }
+
+    // the first caller after a failed load retries it, callers waiting on the lock then see the new outcome
+    private synchronized boolean reload(CompletableFuture<Void> failed) {
+        if(loaded != failed) return !loaded.isCompletedExceptionally();
+        try {
+            rebuild(reservationDao);
+            loaded = CompletableFuture.completedFuture(null);
+            return true;
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            loaded = CompletableFuture.failedFuture(e);
+            return false;
+        }
+    }
+
+    // bookings that already ended are dropped from the car's schedule on the way
+    public synchronized void add(int carId, Instant startsAt, Instant endsAt) {
+        CarSchedule schedule = schedules.computeIfAbsent(carId, id -> new CarSchedule());
+        reservationCount -= schedule.pruneEndedBy(System.currentTimeMillis());
+        if(schedule.add(startsAt.toEpochMilli(), endsAt.toEpochMilli())) reservationCount++;
+    }
+
+    public synchronized int size() {
+        return reservationCount;
+    }
+
+    public boolean isFree(int carId, Instant from, Instant to) {
+        awaitLoaded();
+        synchronized (this) {
+            CarSchedule schedule = schedules.get(carId);
+            return schedule == null || schedule.isFree(from.toEpochMilli(), to.toEpochMilli());
+        }
+    }
+
+    // the cars of companyCars with no booking overlapping [from, to)
+    public CarSnapshot snapshotFreeCars(CarSnapshot companyCars, Instant from, Instant to) {
+        awaitLoaded();
+        int rows = companyCars == null ? 0 : companyCars.size();
+        CarSnapshot snapshot = new CarSnapshot(rows);
+        synchronized (this) {
+            for(int row = 0; row < rows; row++) {
+                CarSchedule schedule = schedules.get(companyCars.getId(row));
+                if(schedule == null || schedule.isFree(from.toEpochMilli(), to.toEpochMilli())) {
+                    snapshot.append(companyCars.getId(row), companyCars.getName(row), companyCars.getCompanyId(row));
+                }
+            }
+        }
+        snapshot.seal();
+        return snapshot;
+    }
+}
+
+class EntityCache<T> {
+
+    static private class Entry<T> {
+        final T value;
+
+        final long expiresAtMillis;
+
+        Entry(T value, long expiresAtMillis) {
+            this.value = value;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+
+    private final int maxSize;
+
+    private final long ttlMillis;
+
+    private final ToIntFunction<T> idExtractor;
+
+    private final Function<T, String> nameExtractor;
+
+    private final Map<String, Integer> idsByName = new HashMap<>();
+
+    private final LinkedHashMap<Integer, Entry<T>> entriesById = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Entry<T>> eldest) {
+            if(size() <= maxSize) return false;
+            idsByName.remove(nameExtractor.apply(eldest.getValue().value));
+            evictions++;
+            return true;
+        }
+    };
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    // bumped by every write, a value read from the database before a write must not be cached after it
+    private long epoch;
+
+    EntityCache(int maxSize, long ttlMillis, ToIntFunction<T> idExtractor, Function<T, String> nameExtractor) {
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+        this.idExtractor = idExtractor;
+        this.nameExtractor = nameExtractor;
+    }
+
+    public synchronized T getById(int id) {
+        Entry<T> entry = entriesById.get(id);
+        if(entry == null) {
+            misses++;
+            return null;
+        }
+        if(entry.expiresAtMillis < System.currentTimeMillis()) {
+            removeId(id);
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    public synchronized T getByName(String name) {
+        Integer id = idsByName.get(name);
+        if(id == null) {
+            misses++;
+            return null;
+        }
+        return getById(id);
+    }
+
+    public synchronized long getEpoch() {
+        return epoch;
+    }
+
+    // for values written by the caller itself
+    public synchronized void put(T value) {
+        epoch++;
+        store(value);
+    }
+
+    // for values read from the database, dropped when a write happened since readEpoch was taken
+    public synchronized void putIfUnchanged(T value, long readEpoch) {
+        if(epoch == readEpoch) store(value);
+    }
+
+    public synchronized void invalidateId(int id) {
+        epoch++;
+        removeId(id);
+    }
+
+    public synchronized void invalidateName(String name) {
+        epoch++;
+        Integer id = idsByName.remove(name);
+        if(id != null) entriesById.remove(id);
+    }
+
+    private void store(T value) {
+        if(value == null) return;
+        int id = idExtractor.applyAsInt(value);
+        removeId(id);
+        Integer previousId = idsByName.remove(nameExtractor.apply(value));
+        if(previousId != null) entriesById.remove(previousId);
+        entriesById.put(id, new Entry<>(value, System.currentTimeMillis() + ttlMillis));
+        idsByName.put(nameExtractor.apply(value), id);
+    }
+
+    private void removeId(int id) {
+        Entry<T> entry = entriesById.remove(id);
+        if(entry != null) idsByName.remove(nameExtractor.apply(entry.value));
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized int size() {
+        return entriesById.size();
+    }
+
+    public synchronized double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+}
+
+class CachingCompanyDao implements ICompanyDao {
+
+    private final ICompanyDao delegate;
+
+    private final EntityCache<Company> cache;
+
+    CachingCompanyDao(ICompanyDao delegate, int maxSize, long ttlMillis) {
+        this.delegate = delegate;
+        this.cache = new EntityCache<>(maxSize, ttlMillis, Company::getId, Company::getName);
+    }
+
+    public EntityCache<Company> getCache() {
+        return cache;
+    }
+
+    @Override
+    public Company createCompany(String name) {
+        cache.invalidateName(name);
+        Company company = delegate.createCompany(name);
+        cache.put(company);
+        return company;
+    }
+
+    @Override
+    public List<Integer> createCompanies(Collection<String> names) {
+        names.forEach(cache::invalidateName);
+        return delegate.createCompanies(names);
+    }
+
+    @Override
+    public List<Company> getAllCompanies() {
+        return delegate.getAllCompanies();
+    }
+
+    @Override
+    public Stream<Company> streamAllCompanies() {
+        return delegate.streamAllCompanies();
+    }
+
+    @Override
+    public CompanySnapshot snapshotAllCompanies() {
+        return delegate.snapshotAllCompanies();
+    }
+
+    @Override
+    public List<Company> getCompaniesPage(int afterId, int limit) {
+        return delegate.getCompaniesPage(afterId, limit);
+    }
+
+    @Override
+    public Company getByName(String name) {
+        Company company = cache.getByName(name);
+        if(company == null) {
+            long epoch = cache.getEpoch();
+            company = delegate.getByName(name);
+            cache.putIfUnchanged(company, epoch);
+        }
+        return company;
+    }
+
+    @Override
+    public Company getById(int id) {
+        Company company = cache.getById(id);
+        if(company == null) {
+            long epoch = cache.getEpoch();
+            company = delegate.getById(id);
+            cache.putIfUnchanged(company, epoch);
+        }
+        return company;
+    }
+}
+
+class CachingCarDao implements ICarDao {
+
+    private final ICarDao delegate;
+
+    private final EntityCache<Car> cache;
+
+    CachingCarDao(ICarDao delegate, int maxSize, long ttlMillis) {
+        this.delegate = delegate;
+        this.cache = new EntityCache<>(maxSize, ttlMillis, Car::getId, Car::getName);
+    }
+
+    public EntityCache<Car> getCache() {
+        return cache;
+    }
+
+    @Override
+    public Car createCar(String name, int companyId) {
+        cache.invalidateName(name);
+        Car car = delegate.createCar(name, companyId);
+        cache.put(car);
+        return car;
+    }
+
+    @Override
+    public List<Integer> createCars(int companyId, Collection<String> names) {
+        names.forEach(cache::invalidateName);
+        return delegate.createCars(companyId, names);
+    }
+
+    @Override
+    public CarSnapshot snapshotAllCars() {
+        return delegate.snapshotAllCars();
+    }
+
+    @Override
+    public CarSnapshot snapshotCarsByCompanyId(int companyId) {
+        return delegate.snapshotCarsByCompanyId(companyId);
+    }
+
+    @Override
+    public List<Car> getCarsByCompanyId(int companyId) {
+        return delegate.getCarsByCompanyId(companyId);
+    }
+
+    @Override
+    public Stream<Car> streamAllCars() {
+        return delegate.streamAllCars();
+    }
+
+    @Override
+    public List<Car> getCarsPageByCompanyId(int companyId, int afterId, int limit) {
+        return delegate.getCarsPageByCompanyId(companyId, afterId, limit);
+    }
+
+    @Override
+    public List<Car> getAvailableCarsByCompanyId(int companyId) {
+        return delegate.getAvailableCarsByCompanyId(companyId);
+    }
+
+    @Override
+    public List<Car> getAvailableCarsPageByCompanyId(int companyId, int afterId, int limit) {
+        return delegate.getAvailableCarsPageByCompanyId(companyId, afterId, limit);
+    }
+
+    @Override
+    public Car getCarById(int id) {
+        Car car = cache.getById(id);
+        if(car == null) {
+            long epoch = cache.getEpoch();
+            car = delegate.getCarById(id);
+            cache.putIfUnchanged(car, epoch);
+        }
+        return car;
+    }
+
+    @Override
+    public Car getCarByName(String name) {
+        Car car = cache.getByName(name);
+        if(car == null) {
+            long epoch = cache.getEpoch();
+            car = delegate.getCarByName(name);
+            cache.putIfUnchanged(car, epoch);
+        }
+        return car;
+    }
+}
+
+class CachingCustomerDao implements ICustomerDao {
+
+    private final ICustomerDao delegate;
+
+    private final EntityCache<Customer> cache;
+
+    CachingCustomerDao(ICustomerDao delegate, int maxSize, long ttlMillis) {
+        this.delegate = delegate;
+        this.cache = new EntityCache<>(maxSize, ttlMillis, Customer::getId, Customer::getName);
+    }
+
+    public EntityCache<Customer> getCache() {
+        return cache;
+    }
+
+    @Override
+    public Customer createCustomer(String name) {
+        cache.invalidateName(name);
+        Customer customer = delegate.createCustomer(name);
+        cache.put(customer);
+        return customer;
+    }
+
+    @Override
+    public List<Integer> createCustomers(Collection<String> names) {
+        names.forEach(cache::invalidateName);
+        return delegate.createCustomers(names);
+    }
+
+    @Override
+    public void setCustomerRentedCarId(String name, Integer rentedCarId) {
+        cache.invalidateName(name);
+        delegate.setCustomerRentedCarId(name, rentedCarId);
+        cache.invalidateName(name);
+    }
+
+    @Override
+    public void setCustomerRentedCarId(int customerId, Integer rentedCarId) {
+        cache.invalidateId(customerId);
+        delegate.setCustomerRentedCarId(customerId, rentedCarId);
+        cache.invalidateId(customerId);
+    }
+
+    @Override
+    public RentResult rentCar(int customerId, int carId) {
+        RentResult result = delegate.rentCar(customerId, carId);
+        cache.invalidateId(customerId);
+        return result;
+    }
+
+    @Override
+    public boolean returnCar(int customerId) {
+        boolean returned = delegate.returnCar(customerId);
+        cache.invalidateId(customerId);
+        return returned;
+    }
+
+    @Override
+    public Customer getCustomerByName(String name) {
+        Customer customer = cache.getByName(name);
+        if(customer == null) {
+            long epoch = cache.getEpoch();
+            customer = delegate.getCustomerByName(name);
+            cache.putIfUnchanged(customer, epoch);
+        }
+        return customer;
+    }
+
+    @Override
+    public Customer getCustomerById(int id) {
+        Customer customer = cache.getById(id);
+        if(customer == null) {
+            long epoch = cache.getEpoch();
+            customer = delegate.getCustomerById(id);
+            cache.putIfUnchanged(customer, epoch);
+        }
+        return customer;
+    }
+
+    @Override
+    public CustomerRental getCustomerRental(int customerId) {
+        return delegate.getCustomerRental(customerId);
+    }
+
+    @Override
+    public List<Customer> getAllCustomers() {
+        return delegate.getAllCustomers();
+    }
+
+    @Override
+    public Stream<Customer> streamAllCustomers() {
+        return delegate.streamAllCustomers();
+    }
+
+    @Override
+    public CustomerSnapshot snapshotAllCustomers() {
+        return delegate.snapshotAllCustomers();
+    }
+
+    @Override
+    public List<Customer> getCustomersPage(int afterId, int limit) {
+        return delegate.getCustomersPage(afterId, limit);
+    }
+}
+
+// one table of the in-memory engine: hash indexes on id and unique name, ids handed out in
+// ascending order so pages, streams and snapshots walk them like ORDER BY ID
+class InMemoryTable<T> {
+
+    private final ConcurrentHashMap<Integer, T> rowsById = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, Integer> idsByName = new ConcurrentHashMap<>();
+
+    private final AtomicInteger lastId = new AtomicInteger();
+
+    // null when the name is taken, the id is used up either way like an AUTO_INCREMENT column
+    public T insert(String name, IntFunction<T> rowForId) {
+        if(name == null) return null;
+        int id = lastId.incrementAndGet();
+        if(idsByName.putIfAbsent(name, id) != null) return null;
+        T row = rowForId.apply(id);
+        rowsById.put(id, row);
+        return row;
+    }
+
+    public T get(int id) {
+        return rowsById.get(id);
+    }
+
+    public T getByName(String name) {
+        Integer id = name == null ? null : idsByName.get(name);
+        return id == null ? null : rowsById.get(id);
+    }
+
+    // the name is the key of the row, replacing keeps it
+    public void replace(int id, T row) {
+        rowsById.replace(id, row);
+    }
+
+    public int size() {
+        return rowsById.size();
+    }
+
+    public List<T> getPage(int afterId, int limit) {
+        List<T> page = new ArrayList<>(Math.min(limit, 1_024));
+        int last = lastId.get();
+        for(int id = Math.max(0, afterId) + 1; id <= last && page.size() < limit; id++) {
+            T row = rowsById.get(id);
+            if(row != null) page.add(row);
+        }
+        return page;
+    }
+
+    public Stream<T> stream() {
+        return IntStream.rangeClosed(1, lastId.get())
+                .mapToObj(rowsById::get)
+                .filter(Objects::nonNull);
+    }
+}
+
+// tables and relations shared by the in-memory DAOs, keeps the rules of the SQL schema: unique names,
+// cars need their company and a car is rented by one customer at a time; rows are never deleted
+class InMemoryStore {
+
+    static private final int LOCK_STRIPES = 256;
+
+    private final InMemoryTable<Company> companies = new InMemoryTable<>();
+
+    private final InMemoryTable<Car> cars = new InMemoryTable<>();
+
+    private final InMemoryTable<Customer> customers = new InMemoryTable<>();
+
+    private final ConcurrentHashMap<Integer, ConcurrentSkipListSet<Integer>> carIdsByCompany = new ConcurrentHashMap<>();
+
+    // the UNIQUE(RENTED_CAR_ID) constraint, a car is claimed here before a customer points to it
+    private final ConcurrentHashMap<Integer, Integer> renterByCar = new ConcurrentHashMap<>();
+
+    // rent and return transitions of a customer run under its stripe
+    private final Object[] customerLocks = new Object[LOCK_STRIPES];
+
+    InMemoryStore() {
+        for(int i = 0; i < customerLocks.length; i++) {
+            customerLocks[i] = new Object();
+        }
+    }
+
+    public InMemoryTable<Company> getCompanies() {
+        return companies;
+    }
+
+    public InMemoryTable<Car> getCars() {
+        return cars;
+    }
+
+    public InMemoryTable<Customer> getCustomers() {
+        return customers;
+    }
+
+    public Object customerLock(int customerId) {
+        return customerLocks[customerId & (LOCK_STRIPES - 1)];
+    }
+
+    public Car insertCar(String name, int companyId) {
+        if(companies.get(companyId) == null) return null;
+        Car car = cars.insert(name, id -> new Car(id, name, companyId));
+        if(car == null) return null;
+        carIdsByCompany.computeIfAbsent(companyId, id -> new ConcurrentSkipListSet<>()).add(car.getId());
+        return car;
+    }
+
+    public NavigableSet<Integer> getCarIds(int companyId) {
+        NavigableSet<Integer> carIds = carIdsByCompany.get(companyId);
+        return carIds == null ? Collections.emptyNavigableSet() : carIds;
+    }
+
+    public boolean isRented(int carId) {
+        return renterByCar.containsKey(carId);
+    }
+
+    // false when there is no such car or someone else rents it, call under the customer's lock
+    public boolean claimCar(int carId, int customerId) {
+        if(cars.get(carId) == null) return false;
+        Integer renter = renterByCar.putIfAbsent(carId, customerId);
+        return renter == null || renter == customerId;
+    }
+
+    public void releaseCar(int carId, int customerId) {
+        renterByCar.remove(carId, customerId);
+    }
+
+}
+
+class InMemoryCompanyDao implements ICompanyDao {
+
+    private final InMemoryStore store;
+
+    InMemoryCompanyDao(InMemoryStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public Company createCompany(String name) {
+        return store.getCompanies().insert(name, id -> new Company(id, name));
+    }
+
+    // stops at the first name that is taken, like the batch insert
+    @Override
+    public List<Integer> createCompanies(Collection<String> names) {
+        List<Integer> ids = new ArrayList<>(names.size());
+        for(String name: names) {
+            Company company = createCompany(name);
+            if(company == null) break;
+            ids.add(company.getId());
+        }
+        return ids;
+    }
+
+    @Override
+    public List<Company> getAllCompanies() {
+        return store.getCompanies().stream().toList();
+    }
+
+    @Override
+    public Stream<Company> streamAllCompanies() {
+        return store.getCompanies().stream();
+    }
+
+    @Override
+    public List<Company> getCompaniesPage(int afterId, int limit) {
+        return store.getCompanies().getPage(afterId, limit);
+    }
+
+    @Override
+    public CompanySnapshot snapshotAllCompanies() {
+        CompanySnapshot snapshot = new CompanySnapshot(store.getCompanies().size());
+        store.getCompanies().stream().forEach(company -> snapshot.append(company.getId(), company.getName()));
+        snapshot.seal();
+        return snapshot;
+    }
+
+    @Override
+    public Company getByName(String name) {
+        return store.getCompanies().getByName(name);
+    }
+
+    @Override
+    public Company getById(int id) {
+        return store.getCompanies().get(id);
+    }
+}
+
+class InMemoryCarDao implements ICarDao {
+
+    private final InMemoryStore store;
+
+    InMemoryCarDao(InMemoryStore store) {
+        this.store = store;
+    }
+
+    private Stream<Car> streamCarsByCompanyId(int companyId, int afterId) {
+        return store.getCarIds(companyId).tailSet(afterId, false).stream()
+                .map(store.getCars()::get)
+                .filter(Objects::nonNull);
+    }
+
+    private static CarSnapshot toSnapshot(Stream<Car> cars) {
+        CarSnapshot snapshot = new CarSnapshot(16);
+        cars.forEach(car -> snapshot.append(car.getId(), car.getName(), car.getCompanyId()));
+        snapshot.seal();
+        return snapshot;
+    }
+
+    @Override
+    public Car createCar(String name, int companyId) {
+        return store.insertCar(name, companyId);
+    }
+
+    @Override
+    public List<Integer> createCars(int companyId, Collection<String> names) {
+        List<Integer> ids = new ArrayList<>(names.size());
+        for(String name: names) {
+            Car car = createCar(name, companyId);
+            if(car == null) break;
+            ids.add(car.getId());
+        }
+        return ids;
+    }
+
+    @Override
+    public List<Car> getCarsByCompanyId(int companyId) {
+        return streamCarsByCompanyId(companyId, 0).toList();
+    }
+
+    @Override
+    public CarSnapshot snapshotCarsByCompanyId(int companyId) {
+        return toSnapshot(streamCarsByCompanyId(companyId, 0));
+    }
+
+    @Override
+    public CarSnapshot snapshotAllCars() {
+        return toSnapshot(store.getCars().stream());
+    }
+
+    @Override
+    public Stream<Car> streamAllCars() {
+        return store.getCars().stream();
+    }
+
+    @Override
+    public List<Car> getCarsPageByCompanyId(int companyId, int afterId, int limit) {
+        return streamCarsByCompanyId(companyId, afterId).limit(limit).toList();
+    }
+
+    @Override
+    public List<Car> getAvailableCarsByCompanyId(int companyId) {
+        return streamCarsByCompanyId(companyId, 0).filter(car -> !store.isRented(car.getId())).toList();
+    }
+
+    @Override
+    public List<Car> getAvailableCarsPageByCompanyId(int companyId, int afterId, int limit) {
+        return streamCarsByCompanyId(companyId, afterId)
+                .filter(car -> !store.isRented(car.getId()))
+                .limit(limit)
+                .toList();
+    }
+
+    @Override
+    public Car getCarById(int id) {
+        return store.getCars().get(id);
+    }
+
+    @Override
+    public Car getCarByName(String name) {
+        return store.getCars().getByName(name);
+    }
+}
+
+// rental history stays in H2, the in-memory engine does not record it
+class InMemoryCustomerDao implements ICustomerDao {
+
+    private final InMemoryStore store;
+
+    InMemoryCustomerDao(InMemoryStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public Customer createCustomer(String name) {
+        return store.getCustomers().insert(name, id -> new Customer(id, name, null));
+    }
+
+    @Override
+    public List<Integer> createCustomers(Collection<String> names) {
+        List<Integer> ids = new ArrayList<>(names.size());
+        for(String name: names) {
+            Customer customer = createCustomer(name);
+            if(customer == null) break;
+            ids.add(customer.getId());
+        }
+        return ids;
+    }
+
+    @Override
+    public void setCustomerRentedCarId(String name, Integer rentedCarId) {
+        Customer customer = store.getCustomers().getByName(name);
+        if(customer != null) setCustomerRentedCarId(customer.getId(), rentedCarId);
+    }
+
+    // a car that is gone or rented by someone else leaves the customer unchanged, like the failed UPDATE
+    @Override
+    public void setCustomerRentedCarId(int customerId, Integer rentedCarId) {
+        synchronized (store.customerLock(customerId)) {
+            Customer customer = store.getCustomers().get(customerId);
+            if(customer == null || Objects.equals(customer.getRentedCarId(), rentedCarId)) return;
+            if(rentedCarId != null && !store.claimCar(rentedCarId, customerId)) return;
+            if(customer.getRentedCarId() != null) store.releaseCar(customer.getRentedCarId(), customerId);
+            store.getCustomers().replace(
+                    customerId,
+                    new Customer(customerId, customer.getName(), rentedCarId, rentedCarId == null ? null : Instant.now())
+            );
+        }
+    }
+
+    @Override
+    public RentResult rentCar(int customerId, int carId) {
+        synchronized (store.customerLock(customerId)) {
+            Customer customer = store.getCustomers().get(customerId);
+            if(customer == null) return RentResult.FAILED;
+            if(customer.getRentedCarId() != null) return RentResult.ALREADY_RENTING;
+            if(!store.claimCar(carId, customerId)) return RentResult.CAR_TAKEN;
+            store.getCustomers().replace(customerId, new Customer(customerId, customer.getName(), carId, Instant.now()));
+            return RentResult.RENTED;
+        }
+    }
+
+    @Override
+    public boolean returnCar(int customerId) {
+        synchronized (store.customerLock(customerId)) {
+            Customer customer = store.getCustomers().get(customerId);
+            if(customer == null || customer.getRentedCarId() == null) return false;
+            store.releaseCar(customer.getRentedCarId(), customerId);
+            store.getCustomers().replace(customerId, new Customer(customerId, customer.getName(), null));
+            return true;
+        }
+    }
+
+    @Override
+    public Customer getCustomerByName(String name) {
+        return store.getCustomers().getByName(name);
+    }
+
+    @Override
+    public Customer getCustomerById(int id) {
+        return store.getCustomers().get(id);
+    }
+
+    @Override
+    public CustomerRental getCustomerRental(int customerId) {
+        Customer customer = store.getCustomers().get(customerId);
+        if(customer == null) return null;
+        Car car = customer.getRentedCarId() == null ? null : store.getCars().get(customer.getRentedCarId());
+        if(car == null) return new CustomerRental(customer, null, null);
+        return new CustomerRental(customer, car, store.getCompanies().get(car.getCompanyId()));
+    }
+
+    @Override
+    public List<Customer> getAllCustomers() {
+        return store.getCustomers().stream().toList();
+    }
+
+    @Override
+    public Stream<Customer> streamAllCustomers() {
+        return store.getCustomers().stream();
+    }
+
+    @Override
+    public List<Customer> getCustomersPage(int afterId, int limit) {
+        return store.getCustomers().getPage(afterId, limit);
+    }
+
+    @Override
+    public CustomerSnapshot snapshotAllCustomers() {
+        CustomerSnapshot snapshot = new CustomerSnapshot(store.getCustomers().size());
+        store.getCustomers().stream().forEach(customer -> snapshot.append(
+                customer.getId(),
+                customer.getName(),
+                customer.getRentedCarId()
+        ));
+        snapshot.seal();
+        return snapshot;
+    }
+}
+
+class InMemoryReservationDao implements IReservationDao {
+
+    private final InMemoryStore store;
+
+    private final ConcurrentHashMap<Integer, CarSchedule> schedules = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<Integer, ConcurrentLinkedQueue<Reservation>> reservationsByCustomer = new ConcurrentHashMap<>();
+
+    private final AtomicInteger lastId = new AtomicInteger();
+
+    InMemoryReservationDao(InMemoryStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public ReserveResult reserveCar(int customerId, int carId, Instant startsAt, Instant endsAt) {
+        if(store.getCars().get(carId) == null || store.getCustomers().get(customerId) == null) return ReserveResult.FAILED;
+        CarSchedule schedule = schedules.computeIfAbsent(carId, id -> new CarSchedule());
+        synchronized (schedule) {
+            if(!schedule.add(startsAt.toEpochMilli(), endsAt.toEpochMilli())) return ReserveResult.CAR_TAKEN;
+        }
+        reservationsByCustomer.computeIfAbsent(customerId, id -> new ConcurrentLinkedQueue<>())
+                .add(new Reservation(lastId.incrementAndGet(), carId, customerId, startsAt, endsAt));
+        return ReserveResult.RESERVED;
+    }
+
+    @Override
+    public Stream<Reservation> streamReservationsEndingAfter(Instant at) {
+        return reservationsByCustomer.values().stream()
+                .flatMap(Collection::stream)
+                .filter(reservation -> reservation.getEndsAt().isAfter(at));
+    }
+
+    @Override
+    public List<Reservation> getReservationsByCustomerId(int customerId, Instant endingAfter) {
+        return reservationsByCustomer.getOrDefault(customerId, new ConcurrentLinkedQueue<>()).stream()
+                .filter(reservation -> reservation.getEndsAt().isAfter(endingAfter))
+                .sorted(Comparator.comparing(Reservation::getStartsAt))
+                .toList();
+    }
+}
+
+// companies and their cars live on one of several H2 files, customers are copied to every file
+class ShardRouter implements AutoCloseable {
+
+    static private final int FAN_OUT_QUEUE_CAPACITY = 1_024;
+
+    static private final ObjectInstanceCreator<Integer> countCreator = (ResultSet rs) -> rs.getInt(1);
+
+    private final List<ConnectionPool> pools;
+
+    private final ExecutorService executor;
+
+    ShardRouter(ConnectionPool primary, int shardCount) {
+        if(shardCount < 1) throw new IllegalArgumentException("The shard count must be positive");
+        List<ConnectionPool> shardPools = new ArrayList<>(List.of(primary));
+        for(int shard = 1; shard < shardCount; shard++) {
+            shardPools.add(new ConnectionPool(
+                    shardUrl(primary.getDatabaseUrl(), shard),
+                    primary.getMaxSize(),
+                    primary.getIdleTimeoutMillis()
+            ));
+        }
+        this.pools = List.copyOf(shardPools);
+        // enough threads for every shard to use its whole pool
+        this.executor = AsyncDao.newBoundedExecutor(shardCount * primary.getMaxSize(), FAN_OUT_QUEUE_CAPACITY);
+    }
+
+    static String shardUrl(String databaseUrl, int shard) {
+        int settings = databaseUrl.indexOf(';');
+        return settings < 0
+                ? databaseUrl + "-shard" + shard
+                : databaseUrl.substring(0, settings) + "-shard" + shard + databaseUrl.substring(settings);
+    }
+
+    // 1 for a database that was never split
+    static int recordedShardCount(ConnectionPool pool) {
+        List<Integer> result = new DbClient<Integer>(pool).executeQueryStatement(
+                "SELECT COALESCE(MAX(SHARD_COUNT), 1) FROM SHARD_CONFIG",
+                countCreator
+        );
+        return result == null ? 1 : result.get(0);
+    }
+
+    public int size() {
+        return pools.size();
+    }
+
+    public <D> List<D> perShard(Function<ConnectionPool, D> factory) {
+        return pools.stream().map(factory).toList();
+    }
+
+    // company and car ids are handed out round robin, id 1 on shard 0, id 2 on shard 1 and so on
+    public int shardOfId(int id) {
+        return Math.floorMod(id - 1, pools.size());
+    }
+
+    // String.hashCode is fixed by the language spec, so a name keeps its shard across restarts
+    public int shardOfName(String name) {
+        return Math.floorMod(name.hashCode(), pools.size());
+    }
+
+    // runs the call on every shard at once, results are in shard order
+    public <R> List<R> fanOut(IntFunction<R> call) {
+        List<CompletableFuture<R>> others = new ArrayList<>();
+        for(int shard = 1; shard < pools.size(); shard++) {
+            int target = shard;
+            others.add(CompletableFuture.supplyAsync(() -> call.apply(target), executor));
+        }
+        List<R> results = new ArrayList<>(pools.size());
+        results.add(call.apply(0));
+        others.forEach(future -> results.add(future.join()));
+        return results;
+    }
+
+    public void prepare() {
+        try {
+            fanOut(shard -> new SchemaMigrator(pools.get(shard)).migrate());
+        } catch (CompletionException e) {
+            if(e.getCause() instanceof SchemaMigrationException failure) throw failure;
+            throw e;
+        }
+        for(int shard = 0; shard < pools.size(); shard++) {
+            DbClient<Integer> client = new DbClient<>(pools.get(shard));
+            List<Integer> recorded = client.executeQueryStatement(
+                    "SELECT SHARD_COUNT FROM SHARD_CONFIG WHERE SHARD_INDEX = ?",
+                    countCreator,
+                    shard
+            );
+            if(recorded == null) throw new IllegalStateException("Could not read the layout of shard " + shard);
+            if(!recorded.isEmpty()) {
+                if(recorded.get(0) != pools.size()) {
+                    throw new IllegalStateException(String.format(
+                            "Shard %d belongs to a %d shard layout, resharding is not supported",
+                            shard,
+                            recorded.get(0)
+                    ));
+                }
+                continue;
+            }
+            List<Integer> rows = client.executeQueryStatement(
+                    "SELECT (SELECT COUNT(*) FROM COMPANY) + (SELECT COUNT(*) FROM CUSTOMER)",
+                    countCreator
+            );
+            if(rows == null || rows.get(0) > 0) {
+                throw new IllegalStateException("'" + pools.get(shard).getDatabaseUrl() + "' already holds data and cannot be split in place");
+            }
+            // ids from a shard whose sequences were not moved would collide, so any failure stops the startup
+            // before the layout is recorded and the next start tries again
+            try (PooledConnection conn = pools.get(shard).borrow()) {
+                try (Statement statement = conn.getConnection().createStatement()) {
+                    for(String table: List.of("COMPANY", "CAR")) {
+                        statement.executeUpdate("ALTER TABLE " + table + " ALTER COLUMN ID RESTART WITH " + (shard + 1));
+                        statement.executeUpdate("ALTER TABLE " + table + " ALTER COLUMN ID SET INCREMENT BY " + pools.size());
+                    }
+                }
+                conn.executeUpdate(
+                        "INSERT INTO SHARD_CONFIG(SHARD_INDEX, SHARD_COUNT) VALUES (?, ?)",
+                        shard,
+                        pools.size()
+                );
+            } catch (SQLException se) {
+                throw new IllegalStateException("Could not set up the id sequences of shard " + shard + ": " + se.getMessage(), se);
+            }
+        }
+    }
+
+    // null when a shard failed, like a single DAO would return
+    static <T> List<T> mergeListsById(List<List<T>> parts, ToIntFunction<T> id) {
+        if(parts.contains(null)) return null;
+        return parts.stream()
+                .flatMap(List::stream)
+                .sorted(Comparator.comparingInt(id))
+                .toList();
+    }
+
+    // k-way merge of streams that are each ordered by id, closing the result closes every part,
+    // a shard failing to open or read surfaces as UncheckedSQLException rather than a shorter result
+    static <T> Stream<T> mergeStreamsById(List<Stream<T>> parts, ToIntFunction<T> id) {
+        PriorityQueue<Map.Entry<T, Iterator<T>>> heads = new PriorityQueue<>(
+                Comparator.comparingInt((Map.Entry<T, Iterator<T>> head) -> id.applyAsInt(head.getKey()))
+        );
+        Spliterator<T> merged = new Spliterators.AbstractSpliterator<>(Long.MAX_VALUE, Spliterator.ORDERED) {
+            private boolean started;
+
+            @Override
+            public boolean tryAdvance(Consumer<? super T> action) {
+                if(!started) {
+                    for(Stream<T> part: parts) {
+                        Iterator<T> iterator = part.iterator();
+                        if(iterator.hasNext()) heads.add(Map.entry(iterator.next(), iterator));
+                    }
+                    started = true;
+                }
+                Map.Entry<T, Iterator<T>> head = heads.poll();
+                if(head == null) return false;
+                action.accept(head.getKey());
+                if(head.getValue().hasNext()) heads.add(Map.entry(head.getValue().next(), head.getValue()));
+                return true;
+            }
+        };
+        return StreamSupport.stream(merged, false).onClose(() -> parts.forEach(Stream::close));
+    }
+
+    // visits the rows of snapshots filled in id order in global id order, there are few parts so a linear pick is enough
+    static <S extends ColumnarSnapshot> void forEachRowById(List<S> parts, ObjIntConsumer<S> action) {
+        int[] rows = new int[parts.size()];
+        while(true) {
+            int next = -1;
+            for(int part = 0; part < parts.size(); part++) {
+                if(rows[part] == parts.get(part).size()) continue;
+                if(next < 0 || parts.get(part).getId(rows[part]) < parts.get(next).getId(rows[next])) next = part;
+            }
+            if(next < 0) return;
+            action.accept(parts.get(next), rows[next]++);
+        }
+    }
+
+    // shard 0 is the caller's pool and stays open
+    @Override
+    public void close() {
+        executor.shutdown();
+        pools.subList(1, pools.size()).forEach(ConnectionPool::close);
+    }
+}
+
+class ShardedCompanyDao implements ICompanyDao {
+
+    private final ShardRouter router;
+
+    private final List<CompanyDao> shards;
+
+    ShardedCompanyDao(ShardRouter router) {
+        this.router = router;
+        this.shards = router.perShard(CompanyDao::new);
+    }
+
+    // a name always lands on the same shard, so the UNIQUE(NAME) of each shard holds across all of them
+    @Override
+    public Company createCompany(String name) {
+        return shards.get(router.shardOfName(name)).createCompany(name);
+    }
+
+    // ids come back grouped by shard
+    @Override
+    public List<Integer> createCompanies(Collection<String> names) {
+        Map<Integer, List<String>> namesByShard = names.stream().collect(Collectors.groupingBy(router::shardOfName));
+        return router.fanOut(shard -> shards.get(shard).createCompanies(namesByShard.getOrDefault(shard, List.of())))
+                .stream()
+                .flatMap(List::stream)
+                .toList();
+    }
+
+    @Override
+    public List<Company> getAllCompanies() {
+        return ShardRouter.mergeListsById(router.fanOut(shard -> shards.get(shard).getAllCompanies()), Company::getId);
+    }
+
+    @Override
+    public Stream<Company> streamAllCompanies() {
+        return ShardRouter.mergeStreamsById(router.fanOut(shard -> shards.get(shard).streamAllCompanies()), Company::getId);
+    }
+
+    // every shard returns its own first page, the global page is the smallest ids among them
+    @Override
+    public List<Company> getCompaniesPage(int afterId, int limit) {
+        List<Company> merged = ShardRouter.mergeListsById(
+                router.fanOut(shard -> shards.get(shard).getCompaniesPage(afterId, limit)),
+                Company::getId
+        );
+        return merged == null ? null : merged.subList(0, Math.min(limit, merged.size()));
+    }
+
+    @Override
+    public CompanySnapshot snapshotAllCompanies() {
+        List<CompanySnapshot> parts = router.fanOut(shard -> shards.get(shard).snapshotAllCompanies());
+        if(parts.contains(null)) return null;
+        CompanySnapshot snapshot = new CompanySnapshot(parts.stream().mapToInt(ColumnarSnapshot::size).sum());
+        ShardRouter.forEachRowById(parts, (part, row) -> snapshot.append(part.getId(row), part.getName(row)));
+        snapshot.seal();
+        return snapshot;
+    }
+
+    @Override
+    public Company getByName(String name) {
+        return shards.get(router.shardOfName(name)).getByName(name);
+    }
+
+    @Override
+    public Company getById(int id) {
+        return shards.get(router.shardOfId(id)).getById(id);
+    }
+}
+
+// cars stay on the shard of their company, so every per company query reads one file
+class ShardedCarDao implements ICarDao {
+
+    private final ShardRouter router;
+
+    private final List<CarDao> shards;
+
+    // UNIQUE(NAME) only holds within a shard, the other shards are checked under this lock so names stay unique
+    // across the layout like in a single file; creating cars is rare enough for one lock
+    private final Object nameLock = new Object();
+
+    ShardedCarDao(ShardRouter router) {
+        this.router = router;
+        this.shards = router.perShard(CarDao::new);
+    }
+
+    private CarDao shardOfCompany(int companyId) {
+        return shards.get(router.shardOfId(companyId));
+    }
+
+    // the names some shard already has, null when a shard could not be read
+    private Set<String> takenNames(Collection<String> names) {
+        String[] candidates = names.toArray(String[]::new);
+        List<List<Car>> parts = router.fanOut(shard -> shards.get(shard).executeQueryStatement(
+                "SELECT ID, NAME, COMPANY_ID FROM CAR WHERE NAME = ANY(?)",
+                CarDao.getCarCreator(),
+                (Object) candidates
+        ));
+        if(parts.contains(null)) return null;
+        return parts.stream().flatMap(List::stream).map(Car::getName).collect(Collectors.toSet());
+    }
+
+    @Override
+    public Car createCar(String name, int companyId) {
+        synchronized (nameLock) {
+            Set<String> taken = takenNames(List.of(name));
+            if(taken == null || !taken.isEmpty()) return null;
+            return shardOfCompany(companyId).createCar(name, companyId);
+        }
+    }
+
+    // names another shard holds are skipped like the duplicates a single file rejects
+    @Override
+    public List<Integer> createCars(int companyId, Collection<String> names) {
+        synchronized (nameLock) {
+            Set<String> taken = takenNames(names);
+            if(taken == null) return List.of();
+            return shardOfCompany(companyId).createCars(
+                    companyId,
+                    names.stream().filter(name -> !taken.contains(name)).toList()
+            );
+        }
+    }
+
+    @Override
+    public List<Car> getCarsByCompanyId(int companyId) {
+        return shardOfCompany(companyId).getCarsByCompanyId(companyId);
+    }
+
+    @Override
+    public CarSnapshot snapshotCarsByCompanyId(int companyId) {
+        return shardOfCompany(companyId).snapshotCarsByCompanyId(companyId);
+    }
+
+    @Override
+    public CarSnapshot snapshotAllCars() {
+        List<CarSnapshot> parts = router.fanOut(shard -> shards.get(shard).snapshotAllCars());
+        if(parts.contains(null)) return null;
+        CarSnapshot snapshot = new CarSnapshot(parts.stream().mapToInt(ColumnarSnapshot::size).sum());
+        ShardRouter.forEachRowById(parts, (part, row) -> snapshot.append(part.getId(row), part.getName(row), part.getCompanyId(row)));
+        snapshot.seal();
+        return snapshot;
+    }
+
+    @Override
+    public Stream<Car> streamAllCars() {
+        return ShardRouter.mergeStreamsById(router.fanOut(shard -> shards.get(shard).streamAllCars()), Car::getId);
+    }
+
+    @Override
+    public List<Car> getCarsPageByCompanyId(int companyId, int afterId, int limit) {
+        return shardOfCompany(companyId).getCarsPageByCompanyId(companyId, afterId, limit);
+    }
+
+    @Override
+    public List<Car> getAvailableCarsByCompanyId(int companyId) {
+        return shardOfCompany(companyId).getAvailableCarsByCompanyId(companyId);
+    }
+
+    @Override
+    public List<Car> getAvailableCarsPageByCompanyId(int companyId, int afterId, int limit) {
+        return shardOfCompany(companyId).getAvailableCarsPageByCompanyId(companyId, afterId, limit);
+    }
+
+    @Override
+    public Car getCarById(int id) {
+        return shards.get(router.shardOfId(id)).getCarById(id);
+    }
+
+    // createCar keeps names unique across shards, so at most one shard has the car
+    @Override
+    public Car getCarByName(String name) {
+        return router.fanOut(shard -> shards.get(shard).getCarByName(name)).stream()
+                .filter(Objects::nonNull)
+                .findFirst()
+                .orElse(null);
+    }
+}
+
+class ShardedRentalHistoryDao implements IRentalHistoryDao {
+
+    private final ShardRouter router;
+
+    private final List<RentalHistoryDao> shards;
+
+    ShardedRentalHistoryDao(ShardRouter router) {
+        this.router = router;
+        this.shards = router.perShard(RentalHistoryDao::new);
+    }
+
+    public RentalHistoryDao getShard(int shard) {
+        return shards.get(shard);
+    }
+
+    // each shard ranks its own companies, the global top is taken from their union
+    @Override
+    public List<Utilization> getCompanyUtilization(Instant from, Instant to, int limit) {
+        List<List<Utilization>> parts = router.fanOut(shard -> shards.get(shard).getCompanyUtilization(from, to, limit));
+        if(parts.contains(null)) return null;
+        return parts.stream()
+                .flatMap(List::stream)
+                .sorted(Comparator.comparingLong(Utilization::getRentedSeconds).reversed().thenComparingInt(Utilization::getId))
+                .limit(limit)
+                .toList();
+    }
+
+    @Override
+    public List<Utilization> getCarUtilization(int companyId, Instant from, Instant to, int limit) {
+        return shards.get(router.shardOfId(companyId)).getCarUtilization(companyId, from, to, limit);
+    }
+}
+
+// shard 0 owns customer ids and names, the other shards hold copies so a rental can reference its car
+// in the same file, the copy on the shard of the rented car is the only one with RENTED_CAR_ID set;
+// creating a customer therefore costs one insert per shard, which is accepted because rents and returns,
+// by far the more frequent writes, only touch the shard of the car
+class ShardedCustomerDao implements ICustomerDao {
+
+    static private final int LOCK_STRIPES = 256;
+
+    static private final String INSERT_COPY_SQL = "INSERT INTO CUSTOMER(ID, NAME) VALUES (?, ?)";
+
+    private final ShardRouter router;
+
+    private final List<CustomerDao> shards;
+
+    // rent and return transitions of a customer span shards, so they run under its stripe
+    private final Object[] customerLocks = new Object[LOCK_STRIPES];
+
+    // the embedded files are locked to this process, so the map knows every open rental
+    // and a rent or return only touches the shard of the car
+    private final ConcurrentHashMap<Integer, Integer> rentedCarByCustomer = new ConcurrentHashMap<>();
+
+    ShardedCustomerDao(ShardRouter router, ShardedRentalHistoryDao rentalHistory) {
+        this.router = router;
+        List<CustomerDao> shardDaos = new ArrayList<>();
+        for(int shard = 0; shard < router.size(); shard++) {
+            RentalHistoryDao history = rentalHistory.getShard(shard);
+            shardDaos.add(new CustomerDao(history.getConnectionPool(), history));
+        }
+        this.shards = List.copyOf(shardDaos);
+        for(int i = 0; i < customerLocks.length; i++) {
+            customerLocks[i] = new Object();
+        }
+        openRentals(0, Integer.MAX_VALUE).forEach((customerId, customer) -> rentedCarByCustomer.put(customerId, customer.getRentedCarId()));
+    }
+
+    private Object lockOf(int customerId) {
+        return customerLocks[Math.floorMod(customerId, customerLocks.length)];
+    }
+
+    private CustomerDao shardOfCar(int carId) {
+        return shards.get(router.shardOfId(carId));
+    }
+
+    // the shard whose copy of the customer carries the rental
+    private CustomerDao shardOfCustomer(int customerId) {
+        Integer rentedCarId = rentedCarByCustomer.get(customerId);
+        return rentedCarId == null ? shards.get(0) : shardOfCar(rentedCarId);
+    }
+
+    // copies the customers of shard 0 that another shard lacks, gaps can sit anywhere after a failed batch copy
+    public int catchUpCopies() {
+        CustomerSnapshot primary = shards.get(0).snapshotAllCustomers();
+        if(primary == null) throw new IllegalStateException("Could not read the customers of shard 0");
+        return router.fanOut(shard -> {
+            if(shard == 0) return 0;
+            CustomerSnapshot copies = shards.get(shard).snapshotAllCustomers();
+            if(copies == null) throw new IllegalStateException("Could not read the customers of shard " + shard);
+            List<Object[]> missing = new ArrayList<>();
+            for(int row = 0; row < primary.size(); row++) {
+                if(copies.indexOfId(primary.getId(row)) < 0) missing.add(new Object[]{primary.getId(row), primary.getName(row)});
+            }
+            if(missing.isEmpty()) return 0;
+            if(!shards.get(shard).executeBatchUpdateStatement(INSERT_COPY_SQL, missing)) {
+                throw new IllegalStateException("Could not copy " + missing.size() + " customers to shard " + shard);
+            }
+            return missing.size();
+        }).stream().mapToInt(Integer::intValue).sum();
+    }
+
+    // a customer missing from a shard could not rent its cars, so a failed copy undoes the whole creation
+    @Override
+    public Customer createCustomer(String name) {
+        Customer customer = shards.get(0).createCustomer(name);
+        if(customer == null) return null;
+        List<Object[]> row = List.<Object[]>of(new Object[]{customer.getId(), name});
+        List<Boolean> copied = router.fanOut(shard -> shard == 0 || shards.get(shard).executeBatchUpdateStatement(INSERT_COPY_SQL, row));
+        if(!copied.contains(false)) return customer;
+        router.fanOut(shard -> {
+            shards.get(shard).executeUpdateStatement("DELETE FROM CUSTOMER WHERE ID = ?", customer.getId());
+            return null;
+        });
+        return null;
+    }
+
+    @Override
+    public List<Integer> createCustomers(Collection<String> names) {
+        List<Integer> ids = shards.get(0).createCustomers(names);
+        // ids only go missing from the end, after the first chunk that failed
+        List<String> created = new ArrayList<>(names).subList(0, ids.size());
+        List<Object[]> rows = new ArrayList<>(ids.size());
+        for(int i = 0; i < ids.size(); i++) {
+            rows.add(new Object[]{ids.get(i), created.get(i)});
+        }
+        List<Boolean> copied = router.fanOut(shard -> shard == 0 || shards.get(shard).executeBatchUpdateStatement(INSERT_COPY_SQL, rows));
+        // a batch stops at its first bad chunk, the id comparison fills in whatever it left out
+        if(copied.contains(false)) {
+            try {
+                catchUpCopies();
+            } catch (IllegalStateException e) {
+                // the next start catches up again
+                e.printStackTrace();
+            }
+        }
+        return ids;
+    }
+
+    @Override
+    public void setCustomerRentedCarId(String name, Integer rentedCarId) {
+        Customer customer = shards.get(0).getCustomerByName(name);
+        if(customer != null) setCustomerRentedCarId(customer.getId(), rentedCarId);
+    }
+
+    @Override
+    public void setCustomerRentedCarId(int customerId, Integer rentedCarId) {
+        synchronized (lockOf(customerId)) {
+            Integer current = rentedCarByCustomer.get(customerId);
+            if(current != null) {
+                shardOfCar(current).setCustomerRentedCarId(customerId, null);
+                rentedCarByCustomer.remove(customerId);
+            }
+            if(rentedCarId != null) {
+                shardOfCar(rentedCarId).setCustomerRentedCarId(customerId, rentedCarId);
+                Customer customer = shardOfCar(rentedCarId).getCustomerById(customerId);
+                if(customer != null && rentedCarId.equals(customer.getRentedCarId())) rentedCarByCustomer.put(customerId, rentedCarId);
+            }
+        }
+    }
+
+    // the car shard enforces UNIQUE(RENTED_CAR_ID), the stripe keeps a customer from renting on two shards
+    @Override
+    public RentResult rentCar(int customerId, int carId) {
+        synchronized (lockOf(customerId)) {
+            if(rentedCarByCustomer.containsKey(customerId)) return RentResult.ALREADY_RENTING;
+            RentResult result = shardOfCar(carId).rentCar(customerId, carId);
+            if(result == RentResult.RENTED) rentedCarByCustomer.put(customerId, carId);
+            return result;
+        }
+    }
+
+    @Override
+    public boolean returnCar(int customerId) {
+        synchronized (lockOf(customerId)) {
+            Integer rentedCarId = rentedCarByCustomer.get(customerId);
+            if(rentedCarId == null || !shardOfCar(rentedCarId).returnCar(customerId)) return false;
+            rentedCarByCustomer.remove(customerId);
+            return true;
+        }
+    }
+
+    @Override
+    public Customer getCustomerByName(String name) {
+        Customer customer = shards.get(0).getCustomerByName(name);
+        if(customer == null || !rentedCarByCustomer.containsKey(customer.getId())) return customer;
+        return shardOfCustomer(customer.getId()).getCustomerById(customer.getId());
+    }
+
+    @Override
+    public Customer getCustomerById(int id) {
+        return shardOfCustomer(id).getCustomerById(id);
+    }
+
+    @Override
+    public CustomerRental getCustomerRental(int customerId) {
+        return shardOfCustomer(customerId).getCustomerRental(customerId);
+    }
+
+    // open rentals of customers in (afterId, upToId], keyed by customer id
+    private Map<Integer, Customer> openRentals(int afterId, int upToId) {
+        Map<Integer, Customer> rentals = new HashMap<>();
+        router.fanOut(shard -> shards.get(shard).executeQueryStatement(
+                "SELECT ID, NAME, RENTED_CAR_ID, RENTED_AT FROM CUSTOMER WHERE RENTED_CAR_ID > 0 AND ID > ? AND ID <= ?",
+                CustomerDao.getCustomerCreator(),
+                afterId,
+                upToId
+        )).forEach(part -> {
+            if(part != null) part.forEach(customer -> rentals.put(customer.getId(), customer));
+        });
+        return rentals;
+    }
+
+    private List<Customer> withOpenRentals(List<Customer> customers, int afterId) {
+        if(customers == null || customers.isEmpty()) return customers;
+        Map<Integer, Customer> rentals = openRentals(afterId, customers.get(customers.size() - 1).getId());
+        return customers.stream()
+                .map(customer -> rentals.getOrDefault(customer.getId(), customer))
+                .toList();
+    }
+
+    @Override
+    public List<Customer> getAllCustomers() {
+        return withOpenRentals(shards.get(0).getAllCustomers(), 0);
+    }
+
+    @Override
+    public Stream<Customer> streamAllCustomers() {
+        Map<Integer, Customer> rentals = openRentals(0, Integer.MAX_VALUE);
+        return shards.get(0).streamAllCustomers().map(customer -> rentals.getOrDefault(customer.getId(), customer));
+    }
+
+    @Override
+    public List<Customer> getCustomersPage(int afterId, int limit) {
+        return withOpenRentals(shards.get(0).getCustomersPage(afterId, limit), afterId);
+    }
+
+    @Override
+    public CustomerSnapshot snapshotAllCustomers() {
+        CustomerSnapshot snapshot = shards.get(0).snapshotAllCustomers();
+        return snapshot == null ? null : snapshot.withRentedCarIds(id -> rentedCarByCustomer.getOrDefault(id, 0));
+    }
+}
+
+// a booking goes to the shard of its car, where the car row lock orders overlapping bookings
+class ShardedReservationDao implements IReservationDao {
+
+    private final ShardRouter router;
+
+    private final List<ReservationDao> shards;
+
+    ShardedReservationDao(ShardRouter router) {
+        this.router = router;
+        this.shards = router.perShard(ReservationDao::new);
+    }
+
+    @Override
+    public ReserveResult reserveCar(int customerId, int carId, Instant startsAt, Instant endsAt) {
+        return shards.get(router.shardOfId(carId)).reserveCar(customerId, carId, startsAt, endsAt);
+    }
+
+    @Override
+    public Stream<Reservation> streamReservationsEndingAfter(Instant at) {
+        return router.fanOut(shard -> shards.get(shard).streamReservationsEndingAfter(at)).stream()
+                .reduce(Stream.empty(), Stream::concat);
+    }
+
+    @Override
+    public List<Reservation> getReservationsByCustomerId(int customerId, Instant endingAfter) {
+        List<List<Reservation>> parts = router.fanOut(shard -> shards.get(shard).getReservationsByCustomerId(customerId, endingAfter));
+        if(parts.contains(null)) return null;
+        return parts.stream()
+                .flatMap(List::stream)
+                .sorted(Comparator.comparing(Reservation::getStartsAt))
+                .toList();
+    }
+}
+
+class RentalJournal implements AutoCloseable {
+
+    // customer id, car id (0 for a return), event time in epoch millis
+    static private final int RECORD_SIZE = Integer.BYTES * 2 + Long.BYTES;
+
+    private final FileChannel channel;
+
+    private final Object forceLock = new Object();
+
+    // positions are logical and keep growing across truncations, the file offset is position - truncatedBytes
+    private long appendedPosition;
+
+    private long truncatedBytes;
+
+    private volatile long durablePosition;
+
+    RentalJournal(Path path) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        if(parent != null) Files.createDirectories(parent);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // a crash in the middle of an append leaves a torn record at the end
+        long size = channel.size() - channel.size() % RECORD_SIZE;
+        channel.truncate(size);
+        appendedPosition = size;
+        durablePosition = size;
+    }
+
+    public synchronized List<long[]> readAll() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) (appendedPosition - truncatedBytes));
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer, buffer.position()) < 0) break;
+        }
+        buffer.flip();
+        List<long[]> records = new ArrayList<>(buffer.remaining() / RECORD_SIZE);
+        while(buffer.remaining() >= RECORD_SIZE) {
+            records.add(new long[]{buffer.getInt(), buffer.getInt(), buffer.getLong()});
+        }
+        return records;
+    }
+
+    public synchronized long append(int customerId, int carId, long atMillis) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE).putInt(customerId).putInt(carId).putLong(atMillis).flip();
+        while(record.hasRemaining()) {
+            appendedPosition += channel.write(record, appendedPosition - truncatedBytes);
+        }
+        return appendedPosition;
+    }
+
+    // group commit: whoever gets here first forces everything appended so far, the others find it already durable
+    public void awaitDurable(long position) throws IOException {
+        if(durablePosition >= position) return;
+        synchronized (forceLock) {
+            if(durablePosition >= position) return;
+            long target;
+            synchronized (this) {
+                target = appendedPosition;
+            }
+            channel.force(false);
+            durablePosition = target;
+        }
+    }
+
+    public void truncate() throws IOException {
+        synchronized (forceLock) {
+            synchronized (this) {
+                channel.truncate(0);
+                channel.force(false);
+                truncatedBytes = appendedPosition;
+                durablePosition = appendedPosition;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
+
+class WriteBehindCustomerDao extends DbClient<Customer> implements ICustomerDao, AutoCloseable {
+
+    static private final String FLUSH_SQL = "UPDATE CUSTOMER SET RENTED_CAR_ID = ?, RENTED_AT = ? WHERE ID = ?";
+
+    static private final int RETURNED = 0;
+
+    private final ICustomerDao delegate;
+
+    private final RentalHistoryDao rentalHistory;
+
+    private final CustomerRentalDao customerRentals;
+
+    private final RentalJournal journal;
+
+    // the RENT event of every open rental
+    private final IntObjectHashMap<RentalEvent> rentalByCustomer = new IntObjectHashMap<>();
+
+    private final IntHashSet rentedCars = new IntHashSet();
+
+    // cars seen in H2, cars are never deleted so a hit needs no further check
+    private final IntHashSet knownCars = new IntHashSet();
+
+    // state changes not in H2 yet, the last one per customer wins
+    private Map<Integer, RentalEvent> pending = new LinkedHashMap<>();
+
+    private List<RentalEvent> pendingEvents = new ArrayList<>();
+
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "rental-write-behind");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    WriteBehindCustomerDao(
+            ICustomerDao delegate,
+            RentalHistoryDao rentalHistory,
+            ConnectionPool connectionPool,
+            Path journalPath,
+            long flushIntervalMillis
+    ) throws IOException {
+        super(connectionPool);
+        this.delegate = delegate;
+        this.rentalHistory = rentalHistory;
+        this.customerRentals = new CustomerRentalDao(connectionPool);
+        this.journal = new RentalJournal(journalPath);
+        // a range instead of IS NOT NULL lets H2 use the RENTED_CAR_ID index, so this reads open rentals only
+        List<Customer> renting = executeQueryStatement(
+                "SELECT ID, NAME, RENTED_CAR_ID, RENTED_AT FROM CUSTOMER WHERE RENTED_CAR_ID > 0",
+                CustomerDao.getCustomerCreator()
+        );
+        for(Customer customer: renting) {
+            rentalByCustomer.put(
+                    customer.getId(),
+                    RentalEvent.rent(customer.getId(), customer.getRentedCarId(), customer.getRentedAt())
+            );
+        }
+        replay();
+        writer.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized boolean isCarRented(int carId) {
+        return rentedCars.contains(carId);
+    }
+
+    private void replay() throws IOException {
+        List<long[]> records = journal.readAll();
+        for(long[] record: records) {
+            RentalEvent event = apply((int) record[0], (int) record[1], Instant.ofEpochMilli(record[2]));
+            // the journal may still hold records that were flushed, H2 is then ahead of them and their events exist
+            if(event != null && (event.getStartedAt() == null || !event.getStartedAt().isAfter(event.getEventAt()))) {
+                pending.put(event.getCustomerId(), event);
+                pendingEvents.add(event);
+            }
+        }
+        rentedCars.clear();
+        rentalByCustomer.forEachValue(rental -> rentedCars.add(rental.getCarId()));
+        if(records.isEmpty()) return;
+        flush();
+        if(!pending.isEmpty()) {
+            throw new IllegalStateException("Could not replay the rental journal");
+        }
+        System.err.println("Replayed " + records.size() + " rental journal records");
+    }
+
+    // returns first, so a car handed from one customer to another never trips the unique constraint
+    static private List<Object[]> toRows(Map<Integer, RentalEvent> changes) {
+        List<Object[]> rows = new ArrayList<>(changes.size());
+        changes.forEach((customerId, event) -> {
+            if(event.getType() == RentalEventType.RETURN) rows.add(new Object[]{null, null, customerId});
+        });
+        changes.forEach((customerId, event) -> {
+            if(event.getType() == RentalEventType.RENT) {
+                rows.add(new Object[]{event.getCarId(), Timestamp.from(event.getEventAt()), customerId});
+            }
+        });
+        return rows;
+    }
+
+    private RentalEvent apply(int customerId, int carId, Instant at) {
+        if(carId == RETURNED) {
+            RentalEvent rental = rentalByCustomer.remove(customerId);
+            if(rental == null) return null;
+            rentedCars.remove(rental.getCarId());
+            return RentalEvent.returned(customerId, rental.getCarId(), rental.getEventAt(), at);
+        }
+        RentalEvent rental = RentalEvent.rent(customerId, carId, at);
+        RentalEvent previous = rentalByCustomer.put(customerId, rental);
+        if(previous != null) rentedCars.remove(previous.getCarId());
+        rentedCars.add(carId);
+        return rental;
+    }
+
+    // must hold the lock: memory, journal and pending queue change together
+    private long record(int customerId, int carId) throws IOException {
+        // millisecond precision so a replayed event has the same key as the one it repeats
+        Instant now = Instant.ofEpochMilli(System.currentTimeMillis());
+        long position = journal.append(customerId, carId, now.toEpochMilli());
+        RentalEvent event = apply(customerId, carId, now);
+        pending.put(customerId, event);
+        pendingEvents.add(event);
+        return position;
+    }
+
+    private void awaitDurable(long position) {
+        try {
+            journal.awaitDurable(position);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void flush() {
+        Map<Integer, RentalEvent> batch;
+        List<RentalEvent> events;
+        synchronized (this) {
+            if(pending.isEmpty()) return;
+            batch = pending;
+            events = pendingEvents;
+            pending = new LinkedHashMap<>();
+            pendingEvents = new ArrayList<>();
+        }
+        // history goes first: once H2 shows a state change its events are already there
+        if(!rentalHistory.recordEvents(events)) {
+            requeue(batch, events);
+            return;
+        }
+        List<Object[]> rows = toRows(batch);
+        if(!executeBatchUpdateStatement(FLUSH_SQL, rows)) {
+            // retry row by row, rentals the database rejects are undone and the rest go back in the queue
+            for(Object[] row: rows) {
+                try (PooledConnection conn = getConnectionPool().borrow()) {
+                    conn.executeUpdate(FLUSH_SQL, row);
+                } catch (SQLException se) {
+                    se.printStackTrace();
+                    Integer customerId = (Integer) row[2];
+                    if(CustomerDao.isConstraintViolation(se)) {
+                        revert(batch.get(customerId));
+                    } else {
+                        requeue(Map.of(customerId, batch.get(customerId)), List.of());
+                    }
+                }
+            }
+        }
+        try {
+            synchronized (this) {
+                if(pending.isEmpty()) journal.truncate();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // a rental H2 will not take is returned through the journal, so memory, H2 and the history close it together
+    private synchronized void revert(RentalEvent rejected) {
+        if(rejected.getType() != RentalEventType.RENT) return;
+        if(rentalByCustomer.get(rejected.getCustomerId()) != rejected) return;
+        try {
+            record(rejected.getCustomerId(), RETURNED);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized void requeue(Map<Integer, RentalEvent> batch, List<RentalEvent> events) {
+        batch.forEach((customerId, event) -> {
+            if(!pending.containsKey(customerId)) pending.put(customerId, event);
+        });
+        List<RentalEvent> merged = new ArrayList<>(events);
+        merged.addAll(pendingEvents);
+        pendingEvents = merged;
+    }
+
+    private Customer withRentalState(Customer customer) {
+        if(customer == null) return null;
+        RentalEvent rental;
+        synchronized (this) {
+            rental = rentalByCustomer.get(customer.getId());
+        }
+        Integer rentedCarId = rental == null ? null : rental.getCarId();
+        return Objects.equals(rentedCarId, customer.getRentedCarId())
+                ? customer
+                : new Customer(customer.getId(), customer.getName(), rentedCarId, rental == null ? null : rental.getEventAt());
+    }
+
+    @Override
+    public Customer createCustomer(String name) {
+        return delegate.createCustomer(name);
+    }
+
+    @Override
+    public List<Integer> createCustomers(Collection<String> names) {
+        return delegate.createCustomers(names);
+    }
+
+    @Override
+    public void setCustomerRentedCarId(String name, Integer rentedCarId) {
+        Customer customer = delegate.getCustomerByName(name);
+        if(customer != null) setCustomerRentedCarId(customer.getId(), rentedCarId);
+    }
+
+    @Override
+    public void setCustomerRentedCarId(int customerId, Integer rentedCarId) {
+        long position;
+        synchronized (this) {
+            try {
+                position = 0;
+                if(rentalByCustomer.get(customerId) != null) {
+                    position = record(customerId, RETURNED);
+                }
+                if(rentedCarId != null) {
+                    position = record(customerId, rentedCarId);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+        awaitDurable(position);
+    }
+
+    // the flush cannot report a missing car to the caller, so it is checked before the rental is acknowledged
+    private boolean carExists(int carId) {
+        synchronized (this) {
+            if(knownCars.contains(carId)) return true;
+        }
+        try (PooledConnection conn = getConnectionPool().borrow()) {
+            if(conn.executeQuery("SELECT ID FROM CAR WHERE ID = ?", (ResultSet rs) -> rs.getInt(1), carId).isEmpty()) {
+                return false;
+            }
+        } catch (SQLException se) {
+            se.printStackTrace();
+            return false;
+        }
+        synchronized (this) {
+            knownCars.add(carId);
+        }
+        return true;
+    }
+
+    @Override
+    public RentResult rentCar(int customerId, int carId) {
+        if(!carExists(carId)) return RentResult.FAILED;
+        long position;
+        synchronized (this) {
+            if(rentalByCustomer.get(customerId) != null) return RentResult.ALREADY_RENTING;
+            if(rentedCars.contains(carId)) return RentResult.CAR_TAKEN;
+            try {
+                position = record(customerId, carId);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return RentResult.FAILED;
+            }
+        }
+        awaitDurable(position);
+        return RentResult.RENTED;
+    }
+
+    @Override
+    public boolean returnCar(int customerId) {
+        long position;
+        synchronized (this) {
+            if(rentalByCustomer.get(customerId) == null) return false;
+            try {
+                position = record(customerId, RETURNED);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+        awaitDurable(position);
+        return true;
+    }
+
+    @Override
+    public Customer getCustomerByName(String name) {
+        return withRentalState(delegate.getCustomerByName(name));
+    }
+
+    @Override
+    public Customer getCustomerById(int id) {
+        return withRentalState(delegate.getCustomerById(id));
+    }
+
+    @Override
+    public CustomerRental getCustomerRental(int customerId) {
+        RentalEvent rental;
+        synchronized (this) {
+            rental = rentalByCustomer.get(customerId);
+        }
+        return rental == null
+                ? customerRentals.getCustomerRental(customerId, null, null)
+                : customerRentals.getCustomerRental(customerId, rental.getCarId(), rental.getEventAt());
+    }
+
+    @Override
+    public List<Customer> getAllCustomers() {
+        return delegate.getAllCustomers().stream().map(this::withRentalState).toList();
+    }
+
+    @Override
+    public Stream<Customer> streamAllCustomers() {
+        return delegate.streamAllCustomers().map(this::withRentalState);
+    }
+
+    @Override
+    public CustomerSnapshot snapshotAllCustomers() {
+        CustomerSnapshot snapshot = delegate.snapshotAllCustomers();
+        if(snapshot == null) return null;
+        synchronized (this) {
+            return snapshot.withRentedCarIds(customerId -> {
+                RentalEvent rental = rentalByCustomer.get(customerId);
+                return rental == null ? 0 : rental.getCarId();
+            });
+        }
+    }
+
+    @Override
+    public List<Customer> getCustomersPage(int afterId, int limit) {
+        return delegate.getCustomersPage(afterId, limit).stream().map(this::withRentalState).toList();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        journal.close();
+    }
+}
+
+// streams keep a pooled connection until closed, so they stay on the blocking DAOs
+interface IAsyncCompanyDao {
+
+    CompletableFuture<Company> createCompany(String name);
+
+    CompletableFuture<List<Integer>> createCompanies(Collection<String> names);
+
+    CompletableFuture<List<Company>> getAllCompanies();
+
+    CompletableFuture<List<Company>> getCompaniesPage(int afterId, int limit);
+
+    CompletableFuture<CompanySnapshot> snapshotAllCompanies();
+
+    CompletableFuture<Company> getByName(String name);
+
+    CompletableFuture<Company> getById(int id);
+}
+
+interface IAsyncCarDao {
+
+    CompletableFuture<Car> createCar(String name, int companyId);
+
+    CompletableFuture<List<Integer>> createCars(int companyId, Collection<String> names);
+
+    CompletableFuture<List<Car>> getCarsByCompanyId(int companyId);
+
+    CompletableFuture<CarSnapshot> snapshotCarsByCompanyId(int companyId);
+
+    CompletableFuture<CarSnapshot> snapshotAllCars();
+
+    CompletableFuture<List<Car>> getCarsPageByCompanyId(int companyId, int afterId, int limit);
+
+    CompletableFuture<List<Car>> getAvailableCarsByCompanyId(int companyId);
+
+    CompletableFuture<List<Car>> getAvailableCarsPageByCompanyId(int companyId, int afterId, int limit);
+
+    CompletableFuture<Car> getCarById(int id);
+
+    CompletableFuture<Car> getCarByName(String name);
+}
+
+interface IAsyncCustomerDao {
+
+    CompletableFuture<Customer> createCustomer(String name);
+
+    CompletableFuture<List<Integer>> createCustomers(Collection<String> names);
+
+    CompletableFuture<Void> setCustomerRentedCarId(int customerId, Integer rentedCarId);
+
+    CompletableFuture<RentResult> rentCar(int customerId, int carId);
+
+    CompletableFuture<Boolean> returnCar(int customerId);
+
+    CompletableFuture<Customer> getCustomerByName(String name);
+
+    CompletableFuture<Customer> getCustomerById(int id);
+
+    CompletableFuture<CustomerRental> getCustomerRental(int customerId);
+
+    CompletableFuture<List<Customer>> getAllCustomers();
+
+    CompletableFuture<List<Customer>> getCustomersPage(int afterId, int limit);
+
+    CompletableFuture<CustomerSnapshot> snapshotAllCustomers();
+}
+
+// runs the blocking DAO calls on a shared executor, see newBoundedExecutor
+class AsyncDao<D> {
+
+    protected final D delegate;
+
+    private final Executor executor;
+
+    AsyncDao(D delegate, Executor executor) {
+        this.delegate = delegate;
+        this.executor = executor;
+    }
+
+    protected <R> CompletableFuture<R> supply(Function<D, R> call) {
+        return CompletableFuture.supplyAsync(() -> call.apply(delegate), executor);
+    }
+
+    protected CompletableFuture<Void> run(Consumer<D> call) {
+        return CompletableFuture.runAsync(() -> call.accept(delegate), executor);
+    }
+
+    // one thread per pooled connection, more would only wait in borrow; a full queue runs the call on the caller
+    static ExecutorService newBoundedExecutor(int threads, int queueCapacity) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return new ThreadPoolExecutor(
+                threads,
+                threads,
+                0,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread thread = new Thread(r, "dao-async-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy()
+        );
+    }
+}
+
+class AsyncCompanyDao extends AsyncDao<ICompanyDao> implements IAsyncCompanyDao {
+
+    AsyncCompanyDao(ICompanyDao delegate, Executor executor) {
+        super(delegate, executor);
+    }
+
+    @Override
+    public CompletableFuture<Company> createCompany(String name) {
+        return supply(dao -> dao.createCompany(name));
+    }
+
+    @Override
+    public CompletableFuture<List<Integer>> createCompanies(Collection<String> names) {
+        return supply(dao -> dao.createCompanies(names));
+    }
+
+    @Override
+    public CompletableFuture<List<Company>> getAllCompanies() {
+        return supply(ICompanyDao::getAllCompanies);
+    }
+
+    @Override
+    public CompletableFuture<List<Company>> getCompaniesPage(int afterId, int limit) {
+        return supply(dao -> dao.getCompaniesPage(afterId, limit));
+    }
+
+    @Override
+    public CompletableFuture<CompanySnapshot> snapshotAllCompanies() {
+        return supply(ICompanyDao::snapshotAllCompanies);
+    }
+
+    @Override
+    public CompletableFuture<Company> getByName(String name) {
+        return supply(dao -> dao.getByName(name));
+    }
+
+    @Override
+    public CompletableFuture<Company> getById(int id) {
+        return supply(dao -> dao.getById(id));
+    }
+}
+
+class AsyncCarDao extends AsyncDao<ICarDao> implements IAsyncCarDao {
+
+    AsyncCarDao(ICarDao delegate, Executor executor) {
+        super(delegate, executor);
+    }
+
+    @Override
+    public CompletableFuture<Car> createCar(String name, int companyId) {
+        return supply(dao -> dao.createCar(name, companyId));
+    }
+
+    @Override
+    public CompletableFuture<List<Integer>> createCars(int companyId, Collection<String> names) {
+        return supply(dao -> dao.createCars(companyId, names));
+    }
+
+    @Override
+    public CompletableFuture<List<Car>> getCarsByCompanyId(int companyId) {
+        return supply(dao -> dao.getCarsByCompanyId(companyId));
+    }
+
+    @Override
+    public CompletableFuture<CarSnapshot> snapshotCarsByCompanyId(int companyId) {
+        return supply(dao -> dao.snapshotCarsByCompanyId(companyId));
+    }
+
+    @Override
+    public CompletableFuture<CarSnapshot> snapshotAllCars() {
+        return supply(ICarDao::snapshotAllCars);
+    }
+
+    @Override
+    public CompletableFuture<List<Car>> getCarsPageByCompanyId(int companyId, int afterId, int limit) {
+        return supply(dao -> dao.getCarsPageByCompanyId(companyId, afterId, limit));
+    }
+
+    @Override
+    public CompletableFuture<List<Car>> getAvailableCarsByCompanyId(int companyId) {
+        return supply(dao -> dao.getAvailableCarsByCompanyId(companyId));
+    }
+
+    @Override
+    public CompletableFuture<List<Car>> getAvailableCarsPageByCompanyId(int companyId, int afterId, int limit) {
+        return supply(dao -> dao.getAvailableCarsPageByCompanyId(companyId, afterId, limit));
+    }
+
+    @Override
+    public CompletableFuture<Car> getCarById(int id) {
+        return supply(dao -> dao.getCarById(id));
+    }
+
+    @Override
+    public CompletableFuture<Car> getCarByName(String name) {
+        return supply(dao -> dao.getCarByName(name));
+    }
+}
+
+class AsyncCustomerDao extends AsyncDao<ICustomerDao> implements IAsyncCustomerDao {
+
+    AsyncCustomerDao(ICustomerDao delegate, Executor executor) {
+        super(delegate, executor);
+    }
+
+    @Override
+    public CompletableFuture<Customer> createCustomer(String name) {
+        return supply(dao -> dao.createCustomer(name));
+    }
+
+    @Override
+    public CompletableFuture<List<Integer>> createCustomers(Collection<String> names) {
+        return supply(dao -> dao.createCustomers(names));
+    }
+
+    @Override
+    public CompletableFuture<Void> setCustomerRentedCarId(int customerId, Integer rentedCarId) {
+        return run(dao -> dao.setCustomerRentedCarId(customerId, rentedCarId));
+    }
+
+    @Override
+    public CompletableFuture<RentResult> rentCar(int customerId, int carId) {
+        return supply(dao -> dao.rentCar(customerId, carId));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> returnCar(int customerId) {
+        return supply(dao -> dao.returnCar(customerId));
+    }
+
+    @Override
+    public CompletableFuture<Customer> getCustomerByName(String name) {
+        return supply(dao -> dao.getCustomerByName(name));
+    }
+
+    @Override
+    public CompletableFuture<Customer> getCustomerById(int id) {
+        return supply(dao -> dao.getCustomerById(id));
+    }
+
+    @Override
+    public CompletableFuture<CustomerRental> getCustomerRental(int customerId) {
+        return supply(dao -> dao.getCustomerRental(customerId));
+    }
+
+    @Override
+    public CompletableFuture<List<Customer>> getAllCustomers() {
+        return supply(ICustomerDao::getAllCustomers);
+    }
+
+    @Override
+    public CompletableFuture<List<Customer>> getCustomersPage(int afterId, int limit) {
+        return supply(dao -> dao.getCustomersPage(afterId, limit));
+    }
+
+    @Override
+    public CompletableFuture<CustomerSnapshot> snapshotAllCustomers() {
+        return supply(ICustomerDao::snapshotAllCustomers);
+    }
+}
+
+// sequential writes through a mapped window of the file, the next window is mapped when one fills up
+class MappedFileWriter implements AutoCloseable {
+
+    static private final int WINDOW_SIZE = 16 << 20;
+
+    private final FileChannel channel;
+
+    private final CRC32 checksum = new CRC32();
+
+    private MappedByteBuffer window;
+
+    private long windowStart;
+
+    // bytes of the current window already in the checksum
+    private int checksummed;
+
+    MappedFileWriter(Path path) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        if(parent != null) Files.createDirectories(parent);
+        channel = FileChannel.open(
+                path,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+        );
+        window = channel.map(FileChannel.MapMode.READ_WRITE, 0, WINDOW_SIZE);
+    }
+
+    private void updateChecksum() {
+        ByteBuffer written = window.duplicate();
+        written.limit(written.position()).position(checksummed);
+        checksum.update(written);
+        checksummed = window.position();
+    }
+
+    private ByteBuffer reserve(int bytes) throws IOException {
+        if(window.remaining() < bytes) {
+            updateChecksum();
+            window.force();
+            windowStart += window.position();
+            MappedByteBuffer previous = window;
+            window = channel.map(FileChannel.MapMode.READ_WRITE, windowStart, WINDOW_SIZE);
+            unmap(previous);
+            checksummed = 0;
+        }
+        return window;
+    }
+
+    // Java 17 has no public unmap, without it a mapping lives until its buffer is collected
+    static private void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            java.lang.reflect.Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), buffer);
+        } catch (ReflectiveOperationException e) {
+            // left to the garbage collector
+        }
+    }
+
+    public void putInt(int value) throws IOException {
+        reserve(Integer.BYTES).putInt(value);
+    }
+
+    public void putLong(long value) throws IOException {
+        reserve(Long.BYTES).putLong(value);
+    }
+
+    // unsigned 16 bit byte length, then UTF-8
+    public void putString(String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if(bytes.length > 0xFFFF) throw new IOException("A string of " + bytes.length + " bytes does not fit");
+        reserve(Short.BYTES + bytes.length).putShort((short) bytes.length).put(bytes);
+    }
+
+    // CRC32 of everything written so far, the checksum itself is not part of it
+    public void putChecksum() throws IOException {
+        updateChecksum();
+        putLong(checksum.getValue());
+    }
+
+    public long position() {
+        return windowStart + window.position();
+    }
+
+    // the last window was mapped past the data, it is released before the file is cut back to what was written
+    @Override
+    public void close() throws IOException {
+        if(window == null) return;
+        long size = position();
+        try {
+            window.force();
+            unmap(window);
+            window = null;
+            channel.truncate(size);
+        } finally {
+            channel.close();
+        }
+    }
+}
+
+class MappedFileReader implements AutoCloseable {
+
+    static private final int WINDOW_SIZE = 16 << 20;
+
+    private final FileChannel channel;
+
+    private final long size;
+
+    private MappedByteBuffer window;
+
+    private long windowStart;
+
+    MappedFileReader(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        size = channel.size();
+        map(0);
+    }
+
+    private void map(long position) throws IOException {
+        windowStart = position;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_SIZE, size - position));
+    }
+
+    private ByteBuffer require(int bytes) throws IOException {
+        if(window.remaining() < bytes) {
+            long position = position();
+            if(size - position < bytes) throw new EOFException("The file ends in the middle of a value");
+            map(position);
+        }
+        return window;
+    }
+
+    public int getInt() throws IOException {
+        return require(Integer.BYTES).getInt();
+    }
+
+    public long getLong() throws IOException {
+        return require(Long.BYTES).getLong();
+    }
+
+    public long getLong(long position) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, Long.BYTES).getLong();
+    }
+
+    public String getString() throws IOException {
+        int length = Short.toUnsignedInt(require(Short.BYTES).getShort());
+        byte[] bytes = new byte[length];
+        require(length).get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public long position() {
+        return windowStart + window.position();
+    }
+
+    public long size() {
+        return size;
+    }
+
+    // CRC32 of the first length bytes, mapped window by window
+    public long checksum(long length) throws IOException {
+        CRC32 checksum = new CRC32();
+        for(long position = 0; position < length; position += WINDOW_SIZE) {
+            checksum.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_SIZE, length - position)));
+        }
+        return checksum.getValue();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
+
+interface SnapshotVisitor {
+
+    void company(int id, String name);
+
+    void car(int id, String name, int companyId);
+
+    // rentedCarId is 0 and rentedAt null when the customer has no car
+    void customer(int id, String name, int rentedCarId, Instant rentedAt);
+}
+
+@FunctionalInterface
+interface SnapshotRowWriter {
+    void write(ResultSet rs, MappedFileWriter out) throws SQLException, IOException;
+}
+
+// magic, version and creation time, then the rows of COMPANY, CAR and CUSTOMER in id order with an id of 0
+// after each table, then a CRC32 of everything before it
+class SnapshotFile {
+
+    // "CSNP"
+    static private final int MAGIC = 0x43534E50;
+
+    static private final int VERSION = 1;
+
+    static private final long NO_RENTAL = Long.MIN_VALUE;
+
+    // ids start at 1
+    static private final int END_OF_TABLE = 0;
+
+    static public void writeHeader(MappedFileWriter out) throws IOException {
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.putLong(System.currentTimeMillis());
+    }
+
+    static public void writeEndOfTable(MappedFileWriter out) throws IOException {
+        out.putInt(END_OF_TABLE);
+    }
+
+    static public void writeCompany(MappedFileWriter out, int id, String name) throws IOException {
+        out.putInt(id);
+        out.putString(name);
+    }
+
+    static public void writeCar(MappedFileWriter out, int id, String name, int companyId) throws IOException {
+        out.putInt(id);
+        out.putInt(companyId);
+        out.putString(name);
+    }
+
+    static public void writeCustomer(MappedFileWriter out, int id, String name, int rentedCarId, Instant rentedAt) throws IOException {
+        out.putInt(id);
+        out.putInt(rentedCarId);
+        out.putLong(rentedAt == null ? NO_RENTAL : rentedAt.toEpochMilli());
+        out.putString(name);
+    }
+
+    // the checksum is checked before the first row is visited, so a damaged file is never half restored
+    static public int read(Path path, SnapshotVisitor visitor) throws IOException {
+        try (MappedFileReader in = new MappedFileReader(path)) {
+            if(in.size() < Integer.BYTES * 2 + Long.BYTES * 2 || in.getInt() != MAGIC) {
+                throw new IOException("'" + path + "' is not a car sharing snapshot");
+            }
+            int version = in.getInt();
+            if(version != VERSION) throw new IOException("Snapshot version " + version + " is not supported");
+            long dataSize = in.size() - Long.BYTES;
+            if(in.checksum(dataSize) != in.getLong(dataSize)) throw new IOException("'" + path + "' is damaged, its checksum does not match");
+            in.getLong();
+
+            int rows = 0;
+            for(int id = in.getInt(); id != END_OF_TABLE; id = in.getInt(), rows++) {
+                visitor.company(id, in.getString());
+            }
+            for(int id = in.getInt(); id != END_OF_TABLE; id = in.getInt(), rows++) {
+                int companyId = in.getInt();
+                visitor.car(id, in.getString(), companyId);
+            }
+            for(int id = in.getInt(); id != END_OF_TABLE; id = in.getInt(), rows++) {
+                int rentedCarId = in.getInt();
+                long rentedAt = in.getLong();
+                visitor.customer(id, in.getString(), rentedCarId, rentedAt == NO_RENTAL ? null : Instant.ofEpochMilli(rentedAt));
+            }
+            if(in.position() != dataSize) throw new IOException("'" + path + "' has data after its last row");
+            return rows;
+        }
+    }
+}
+
+class SnapshotDao extends DbClient<Integer> {
+
+    // one commit per batch, so a failed batch is exactly the rows that were skipped
+    static private final int RESTORE_BATCH_SIZE = 1_000;
+
+    static private final ObjectInstanceCreator<Integer> countCreator = (ResultSet rs) -> rs.getInt(1);
+
+    SnapshotDao(ConnectionPool connectionPool) {
+        super(connectionPool);
+    }
+
+    private int writeTable(PooledConnection conn, MappedFileWriter out, String sql, SnapshotRowWriter rowWriter) throws SQLException, IOException {
+        PreparedStatement statement = conn.prepareStatement(sql);
+        statement.setFetchSize(getFetchSize());
+        int written = 0;
+        try (ResultSet rs = statement.executeQuery()) {
+            while(rs.next()) {
+                rowWriter.write(rs, out);
+                written++;
+            }
+        }
+        SnapshotFile.writeEndOfTable(out);
+        return written;
+    }
+
+    // written next to the target and moved over it once complete, so a failed export never leaves a partial file
+    // in place of an older snapshot
+    public ImportReport export(Path path) throws IOException {
+        Path partial = path.resolveSibling(path.getFileName() + ".partial");
+        boolean moved = false;
+        try {
+            ImportReport report = writeSnapshot(partial);
+            if(report == null) return null;
+            Files.move(partial, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            moved = true;
+            return report;
+        } finally {
+            // the writer is closed and unmapped by now
+            if(!moved) Files.deleteIfExists(partial);
+        }
+    }
+
+    private ImportReport writeSnapshot(Path path) throws IOException {
+        long start = System.nanoTime();
+        try (PooledConnection conn = getConnectionPool().borrow(); MappedFileWriter out = new MappedFileWriter(path)) {
+            Connection connection = conn.getConnection();
+            int isolation = connection.getTransactionIsolation();
+            // the three tables are read in one repeatable read transaction, so they come from the same point in time
+            connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+            connection.setAutoCommit(false);
+            try {
+                SnapshotFile.writeHeader(out);
+                int rows = writeTable(
+                        conn,
+                        out,
+                        "SELECT ID, NAME FROM COMPANY ORDER BY ID",
+                        (rs, file) -> SnapshotFile.writeCompany(file, rs.getInt(1), rs.getString(2))
+                );
+                rows += writeTable(
+                        conn,
+                        out,
+                        "SELECT ID, NAME, COMPANY_ID FROM CAR ORDER BY ID",
+                        (rs, file) -> SnapshotFile.writeCar(file, rs.getInt(1), rs.getString(2), rs.getInt(3))
+                );
+                rows += writeTable(
+                        conn,
+                        out,
+                        "SELECT ID, NAME, RENTED_CAR_ID, RENTED_AT FROM CUSTOMER ORDER BY ID",
+                        (rs, file) -> SnapshotFile.writeCustomer(
+                                file,
+                                rs.getInt(1),
+                                rs.getString(2),
+                                rs.getInt(3),
+                                rs.getTimestamp(4) == null ? null : rs.getTimestamp(4).toInstant()
+                        )
+                );
+                out.putChecksum();
+                connection.commit();
+                return new ImportReport(rows, 0, System.nanoTime() - start);
+            } finally {
+                connection.rollback();
+                connection.setAutoCommit(true);
+                connection.setTransactionIsolation(isolation);
+            }
+        } catch (SQLException se) {
+            se.printStackTrace();
+        }
+        return null;
+    }
+
+    private class BatchInsert {
+
+        private final String sql;
+
+        private final List<Object[]> rows = new ArrayList<>(RESTORE_BATCH_SIZE);
+
+        private int skipped;
+
+        BatchInsert(String sql) {
+            this.sql = sql;
+        }
+
+        void add(Object... row) {
+            rows.add(row);
+            if(rows.size() == RESTORE_BATCH_SIZE) flush();
+        }
+
+        void flush() {
+            if(rows.isEmpty()) return;
+            if(!executeBatchUpdateStatement(sql, rows)) skipped += rows.size();
+            rows.clear();
+        }
+    }
+
+    // ids are kept, so cars still point to their company and customers to their car
+    public ImportReport restore(Path path) throws IOException {
+        long start = System.nanoTime();
+        List<Integer> existing = executeQueryStatement(
+                "SELECT (SELECT COUNT(*) FROM COMPANY) + (SELECT COUNT(*) FROM CAR) + (SELECT COUNT(*) FROM CUSTOMER)",
+                countCreator
+        );
+        if(existing == null || existing.get(0) > 0) {
+            throw new IllegalStateException("A snapshot can only be restored into an empty database");
+        }
+        BatchInsert companies = new BatchInsert("INSERT INTO COMPANY(ID, NAME) VALUES (?, ?)");
+        BatchInsert cars = new BatchInsert("INSERT INTO CAR(ID, NAME, COMPANY_ID) VALUES (?, ?, ?)");
+        BatchInsert customers = new BatchInsert("INSERT INTO CUSTOMER(ID, NAME, RENTED_CAR_ID, RENTED_AT) VALUES (?, ?, ?, ?)");
+        // sections come in foreign key order, the previous table is flushed before the next one starts
+        int rows = SnapshotFile.read(path, new SnapshotVisitor() {
+            @Override
+            public void company(int id, String name) {
+                companies.add(id, name);
+            }
+
+            @Override
+            public void car(int id, String name, int companyId) {
+                companies.flush();
+                cars.add(id, name, companyId);
+            }
+
+            @Override
+            public void customer(int id, String name, int rentedCarId, Instant rentedAt) {
+                companies.flush();
+                cars.flush();
+                customers.add(id, name, rentedCarId == 0 ? null : rentedCarId, rentedAt == null ? null : Timestamp.from(rentedAt));
+            }
+        });
+        companies.flush();
+        cars.flush();
+        customers.flush();
+        // explicit ids do not move the identity columns, and a table left behind would hand out ids that are
+        // already taken, so this step fails the restore instead of being reported and skipped
+        try (PooledConnection conn = getConnectionPool().borrow();
+             Statement statement = conn.getConnection().createStatement()) {
+            for(String table: List.of("COMPANY", "CAR", "CUSTOMER")) {
+                int maxId = conn.executeQuery("SELECT COALESCE(MAX(ID), 0) FROM " + table, countCreator).get(0);
+                statement.executeUpdate("ALTER TABLE " + table + " ALTER COLUMN ID RESTART WITH " + (maxId + 1));
+            }
+        } catch (SQLException se) {
+            throw new IllegalStateException("Could not move the id sequences past the restored rows: " + se.getMessage(), se);
+        }
+        int skipped = companies.skipped + cars.skipped + customers.skipped;
+        return new ImportReport(rows - skipped, skipped, System.nanoTime() - start);
+    }
+}
+
+class ImportReport {
+
+    final private int importedRows;
+
+    final private int skippedRows;
+
+    final private long elapsedNanos;
+
+    ImportReport(int importedRows, int skippedRows, long elapsedNanos) {
+        this.importedRows = importedRows;
+        this.skippedRows = skippedRows;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public int getImportedRows() {
+        return importedRows;
+    }
+
+    public int getSkippedRows() {
+        return skippedRows;
+    }
+
+    public double getElapsedSeconds() {
+        return elapsedNanos / 1_000_000_000.0;
+    }
+
+    public double getRowsPerSecond() {
+        return elapsedNanos == 0 ? 0 : importedRows / getElapsedSeconds();
+    }
+}
+
+class CsvImporter {
+
+    private final ICompanyDao companyDao;
+
+    private final ICarDao carDao;
+
+    private final ICustomerDao customerDao;
+
+    CsvImporter(ICompanyDao companyDao, ICarDao carDao, ICustomerDao customerDao) {
+        this.companyDao = companyDao;
+        this.carDao = carDao;
+        this.customerDao = customerDao;
+    }
+
+    static List<String> parseLine(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for(int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if(quoted) {
+                if(c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if(c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if(c == '"') {
+                quoted = true;
+            } else if(c == ',') {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString().trim());
+        return fields;
+    }
+
+    // lines are "company,<name>", "car,<company name>,<car name>" or "customer,<name>"
+    public ImportReport importFile(Path path) throws IOException {
+        long start = System.nanoTime();
+        List<String> companies = new ArrayList<>();
+        Map<String, List<String>> carsByCompany = new LinkedHashMap<>();
+        List<String> customers = new ArrayList<>();
+        int skipped = 0;
+
+        try (BufferedReader reader = Files.newBufferedReader(path)) {
+            String line;
+            int lineNumber = 0;
+            while((line = reader.readLine()) != null) {
+                lineNumber++;
+                if(line.isBlank() || line.startsWith("#")) continue;
+                List<String> fields = parseLine(line);
+                String type = fields.get(0).toLowerCase(Locale.ROOT);
+                if(type.equals("company") && fields.size() == 2) {
+                    companies.add(fields.get(1));
+                } else if(type.equals("car") && fields.size() == 3) {
+                    carsByCompany.computeIfAbsent(fields.get(1), k -> new ArrayList<>()).add(fields.get(2));
+                } else if(type.equals("customer") && fields.size() == 2) {
+                    customers.add(fields.get(1));
+                } else {
+                    System.out.println("Skipping malformed line " + lineNumber + ": " + line);
+                    skipped++;
+                }
+            }
+        }
+
+        // a name that is already taken fails its whole batch chunk, so those rows are dropped up front
+        Set<String> companyNames;
+        try (Stream<Company> existing = companyDao.streamAllCompanies()) {
+            companyNames = existing.map(Company::getName).collect(Collectors.toCollection(HashSet::new));
+        }
+        Set<String> carNames;
+        try (Stream<Car> existing = carDao.streamAllCars()) {
+            carNames = existing.map(Car::getName).collect(Collectors.toCollection(HashSet::new));
+        }
+        Set<String> customerNames;
+        try (Stream<Customer> existing = customerDao.streamAllCustomers()) {
+            customerNames = existing.map(Customer::getName).collect(Collectors.toCollection(HashSet::new));
+        }
+
+        int imported = companyDao.createCompanies(newNames(companies, companyNames)).size();
+        skipped += companies.size() - imported;
+        for(Map.Entry<String, List<String>> entry: carsByCompany.entrySet()) {
+            Company company = companyDao.getByName(entry.getKey());
+            if(company == null) {
+                System.out.println("Skipping " + entry.getValue().size() + " cars of unknown company '" + entry.getKey() + "'");
+                skipped += entry.getValue().size();
+                continue;
+            }
+            int importedCars = carDao.createCars(company.getId(), newNames(entry.getValue(), carNames)).size();
+            imported += importedCars;
+            skipped += entry.getValue().size() - importedCars;
+        }
+        int importedCustomers = customerDao.createCustomers(newNames(customers, customerNames)).size();
+        imported += importedCustomers;
+        skipped += customers.size() - importedCustomers;
+
+        return new ImportReport(imported, skipped, System.nanoTime() - start);
+    }
+
+    // keeps the names that are neither taken nor repeated earlier in the file, the rest count as skipped
+    static private List<String> newNames(List<String> names, Set<String> taken) {
+        List<String> fresh = new ArrayList<>(names.size());
+        for(String name: names) {
+            if(taken.add(name)) fresh.add(name);
+        }
+        return fresh;
+    }
+}
+
+class BenchmarkResult {
+
+    static private final double[] T_9995 = {
+            636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587,
+            4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850,
+            3.819, 3.792, 3.768, 3.745, 3.725, 3.707, 3.690, 3.674, 3.659, 3.646
+    };
+
+    // 0 stands for infinite degrees of freedom, where t is the normal quantile
+    static private final int[] T_9995_TAIL_DF = {30, 40, 60, 120, 0};
+
+    static private final double[] T_9995_TAIL = {3.646, 3.551, 3.460, 3.373, 3.291};
+
+    final private String benchmark;
+
+    final private int size;
+
+    final private double[] microsPerOperation;
+
+    BenchmarkResult(String benchmark, int size, double[] microsPerOperation) {
+        this.benchmark = benchmark;
+        this.size = size;
+        this.microsPerOperation = microsPerOperation;
+    }
+
+    public String getBenchmark() {
+        return benchmark;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public double getScore() {
+        return Arrays.stream(microsPerOperation).average().orElse(0);
+    }
+
+    // half width of the 99.9% Student-t confidence interval of the mean
+    public double getScoreError() {
+        if(microsPerOperation.length < 2) return 0;
+        double mean = getScore();
+        double variance = Arrays.stream(microsPerOperation).map(v -> (v - mean) * (v - mean)).sum() / (microsPerOperation.length - 1);
+        return studentT9995(microsPerOperation.length - 1) * Math.sqrt(variance / microsPerOperation.length);
+    }
+
+    // the 0.9995 quantile of Student's t, tabulated up to 30 degrees of freedom and interpolated in 1/df past that
+    static double studentT9995(int degreesOfFreedom) {
+        if(degreesOfFreedom <= T_9995.length) return T_9995[degreesOfFreedom - 1];
+        double x = 1.0 / degreesOfFreedom;
+        for(int i = 1; i < T_9995_TAIL_DF.length; i++) {
+            double upper = 1.0 / T_9995_TAIL_DF[i - 1];
+            double lower = T_9995_TAIL_DF[i] == 0 ? 0 : 1.0 / T_9995_TAIL_DF[i];
+            if(x >= lower) {
+                double weight = (x - lower) / (upper - lower);
+                return T_9995_TAIL[i] + weight * (T_9995_TAIL[i - 1] - T_9995_TAIL[i]);
+            }
+        }
+        return T_9995_TAIL[T_9995_TAIL.length - 1];
+    }
+
+    // one entry of the results array, with the mean, its error and the raw iteration scores
+    public String toJson() {
+        return String.format(
+                Locale.ROOT,
+                "{\"benchmark\":\"%s\",\"mode\":\"avgt\",\"params\":{\"size\":\"%d\"}," +
+                        "\"primaryMetric\":{\"score\":%.3f,\"scoreError\":%.3f,\"scoreUnit\":\"us/op\",\"rawData\":[[%s]]}}",
+                benchmark,
+                size,
+                getScore(),
+                getScoreError(),
+                Arrays.stream(microsPerOperation)
+                        .mapToObj(v -> String.format(Locale.ROOT, "%.3f", v))
+                        .collect(Collectors.joining(","))
+        );
+    }
+}
+
+class DaoBenchmark {
+
+    static private final int CARS_PER_COMPANY = 1_000;
+
+    static private final int[] SHARD_COUNTS = {1, 2, 3};
+
+    private final int[] sizes;
+
+    private final int warmupIterations;
+
+    private final int measurementIterations;
+
+    private final long iterationMillis;
+
+    private final Random random = new Random(42);
+
+    DaoBenchmark(int[] sizes, int warmupIterations, int measurementIterations, long iterationMillis) {
+        this.sizes = sizes;
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = measurementIterations;
+        this.iterationMillis = iterationMillis;
+    }
+
+    public List<BenchmarkResult> run() {
+        List<BenchmarkResult> results = new ArrayList<>();
+        for(int size: sizes) {
+            try (ConnectionPool pool = new ConnectionPool("jdbc:h2:mem:benchmark" + size + ";DB_CLOSE_DELAY=-1", 4, 60_000)) {
+                new SchemaMigrator(pool).migrate();
+                runSuite("", size, new CompanyDao(pool), new CarDao(pool), new CustomerDao(pool), results);
+                new SchemaMigrator(pool).executeUpdateStatement("SHUTDOWN");
+            }
+            InMemoryStore store = new InMemoryStore();
+            ICustomerDao inMemoryCustomerDao = new InMemoryCustomerDao(store);
+            runSuite("InMemory", size, new InMemoryCompanyDao(store), new InMemoryCarDao(store), inMemoryCustomerDao, results);
+            int threads = Math.min(Runtime.getRuntime().availableProcessors(), customerCount(size));
+            results.add(measureParallel("InMemoryRentReturnCycle.parallel", size, threads, thread -> {
+                // one customer per thread, the cars are shared so claims collide
+                Customer customer = inMemoryCustomerDao.getCustomerByName("customer-" + thread);
+                return () -> {
+                    int carId = 1 + ThreadLocalRandom.current().nextInt(size);
+                    if(inMemoryCustomerDao.rentCar(customer.getId(), carId) == RentResult.RENTED) {
+                        inMemoryCustomerDao.returnCar(customer.getId());
+                    }
+                };
+            }));
+            for(int shardCount: SHARD_COUNTS) {
+                results.add(measureShardedCustomerCreation(size, shardCount));
+            }
+        }
+        return results;
+    }
+
+    // every shard keeps a copy of each customer, so a creation costs one insert per shard
+    private BenchmarkResult measureShardedCustomerCreation(int size, int shardCount) {
+        try (ConnectionPool pool = new ConnectionPool("jdbc:h2:mem:benchmark" + size + "-sharded" + shardCount, 4, 60_000);
+             ShardRouter router = new ShardRouter(pool, shardCount)) {
+            router.prepare();
+            ICustomerDao customerDao = new ShardedCustomerDao(router, new ShardedRentalHistoryDao(router));
+            customerDao.createCustomers(IntStream.range(0, customerCount(size)).mapToObj(i -> "customer-" + i).toList());
+            AtomicInteger created = new AtomicInteger();
+            return measure("Sharded" + shardCount + "CustomerDao.createCustomer", size, () ->
+                    customerDao.createCustomer("new-customer-" + created.getAndIncrement())
+            );
+        }
+    }
+
+    private void runSuite(
+            String engine,
+            int size,
+            ICompanyDao companyDao,
+            ICarDao carDao,
+            ICustomerDao customerDao,
+            List<BenchmarkResult> results
+    ) {
+        int companies = Math.max(1, size / CARS_PER_COMPANY);
+        seed(size, companies, companyDao, carDao, customerDao);
+
+        Customer customer = customerDao.getCustomerByName("customer-0");
+
+        results.add(measure(engine + "CompanyDao.getByName", size, () ->
+                companyDao.getByName("company-" + random.nextInt(companies))
+        ));
+        results.add(measure(engine + "CarDao.getAvailableCarsByCompanyId", size, () ->
+                carDao.getAvailableCarsByCompanyId(1 + random.nextInt(companies))
+        ));
+        results.add(measure(engine + "CustomerDao.setCustomerRentedCarId", size, () -> {
+            customerDao.setCustomerRentedCarId(customer.getName(), 1 + random.nextInt(size));
+            customerDao.setCustomerRentedCarId(customer.getName(), null);
+        }));
+        results.add(measure(engine + "RentReturnCycle", size, () -> {
+            customerDao.rentCar(customer.getId(), 1 + random.nextInt(size));
+            customerDao.getCustomerById(customer.getId());
+            customerDao.returnCar(customer.getId());
+            customerDao.getCustomerById(customer.getId());
+        }));
+    }
+
+    private void seed(int size, int companies, ICompanyDao companyDao, ICarDao carDao, ICustomerDao customerDao) {
+        companyDao.createCompanies(IntStream.range(0, companies).mapToObj(i -> "company-" + i).toList());
+        for(int company = 0; company < companies; company++) {
+            int from = company * size / companies;
+            int to = (company + 1) * size / companies;
+            carDao.createCars(company + 1, IntStream.range(from, to).mapToObj(i -> "car-" + i).toList());
+        }
+        customerDao.createCustomers(IntStream.range(0, customerCount(size)).mapToObj(i -> "customer-" + i).toList());
+    }
+
+    static private int customerCount(int size) {
+        return Math.max(10, size / 100);
+    }
+
+    private BenchmarkResult measure(String benchmark, int size, Runnable operation) {
+        for(int i = 0; i < warmupIterations; i++) {
+            iterate(operation);
+        }
+        double[] microsPerOperation = new double[measurementIterations];
+        for(int i = 0; i < measurementIterations; i++) {
+            microsPerOperation[i] = iterate(operation);
+        }
+        BenchmarkResult result = new BenchmarkResult(benchmark, size, microsPerOperation);
+        System.out.printf(
+                Locale.ROOT,
+                "%-44s size=%-8d %12.3f +- %.3f us/op%n",
+                benchmark,
+                size,
+                result.getScore(),
+                result.getScoreError()
+        );
+        return result;
+    }
+
+    // every thread runs its operation for the iteration, the score is wall time per operation of all threads together
+    private BenchmarkResult measureParallel(String benchmark, int size, int threads, IntFunction<Runnable> operationForThread) {
+        Runnable[] operations = IntStream.range(0, threads).mapToObj(operationForThread).toArray(Runnable[]::new);
+        for(int i = 0; i < warmupIterations; i++) {
+            iterateParallel(operations);
+        }
+        double[] microsPerOperation = new double[measurementIterations];
+        for(int i = 0; i < measurementIterations; i++) {
+            microsPerOperation[i] = iterateParallel(operations);
+        }
+        BenchmarkResult result = new BenchmarkResult(benchmark, size, microsPerOperation);
+        System.out.printf(
+                Locale.ROOT,
+                "%-44s size=%-8d %12.3f +- %.3f us/op (%d threads, %.0f ops/sec)%n",
+                benchmark,
+                size,
+                result.getScore(),
+                result.getScoreError(),
+                threads,
+                1_000_000 / result.getScore()
+        );
+        return result;
+    }
+
+    private double iterateParallel(Runnable[] operations) {
+        LongAdder total = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long[] deadline = new long[1];
+        Thread[] workers = new Thread[operations.length];
+        for(int i = 0; i < workers.length; i++) {
+            Runnable operation = operations[i];
+            workers[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long count = 0;
+                do {
+                    operation.run();
+                    count++;
+                } while(System.nanoTime() < deadline[0]);
+                total.add(count);
+            });
+            workers[i].start();
+        }
+        long began = System.nanoTime();
+        deadline[0] = began + iterationMillis * 1_000_000;
+        start.countDown();
+        for(Thread worker: workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return (System.nanoTime() - began) / 1_000.0 / total.sum();
+    }
+
+    private double iterate(Runnable operation) {
+        long operations = 0;
+        long start = System.nanoTime();
+        long deadline = start + iterationMillis * 1_000_000;
+        long now;
+        do {
+            operation.run();
+            operations++;
+            now = System.nanoTime();
+        } while(now < deadline);
+        return (now - start) / 1_000.0 / operations;
+    }
+
+    static void writeJson(List<BenchmarkResult> results, Path output) throws IOException {
+        Files.writeString(
+                output,
+                results.stream().map(BenchmarkResult::toJson).collect(Collectors.joining(",\n", "[\n", "\n]\n"))
+        );
+    }
+}
+
+class Navigation {
+
+    enum Kind {
+        TO,
+        BACK,
+        STAY,
+        EXIT
+    }
+
+    static private final Navigation BACK = new Navigation(Kind.BACK, null);
+
+    static private final Navigation STAY = new Navigation(Kind.STAY, null);
+
+    static private final Navigation EXIT = new Navigation(Kind.EXIT, null);
+
+    final private Kind kind;
+
+    final private OptionsMenu target;
+
+    private Navigation(Kind kind, OptionsMenu target) {
+        this.kind = kind;
+        this.target = target;
+    }
+
+    static Navigation to(OptionsMenu menu) {
+        return new Navigation(Kind.TO, menu);
+    }
+
+    static Navigation back() {
+        return BACK;
+    }
+
+    static Navigation stay() {
+        return STAY;
+    }
+
+    static Navigation exit() {
+        return EXIT;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public OptionsMenu getTarget() {
+        return target;
+    }
+}
+
+@FunctionalInterface
+interface OptionActionCallback {
+    Navigation callback();
+}
+
+class Option {
+
+    final private int key;
+
+    final private String description;
+
+    private OptionActionCallback action;
+
+    Option(String description) {
+        this(0, description);
+    }
+
+    Option(int key, String description) {
+        this.key = key;
+        this.description = description;
+    }
+
+    Option(String description, OptionActionCallback action) {
+        this(description);
+        this.action = action;
+    }
+
+    public int getKey() {
+        return key;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public OptionActionCallback getAction() {
+        return action;
+    }
+
+    public void setAction(OptionActionCallback value) {
+        action = value;
+    }
+}
+
+@FunctionalInterface
+interface OptionsPageLoader {
+    List<Option> load(int afterKey, int limit);
+}
+
+class EmptyMenuException extends Exception {
+    public EmptyMenuException(String message) {
+        super(message);
+    }
+}
+
+
+class OptionsMenu {
+
+    static private final int DEFAULT_PAGE_SIZE = 20;
+
+    private List<Option> optionsList;
+
+    private String title = "Choose an option: ";
+
+    private String emptyMessage = "No options assigned";
+
+    private OptionsMenu parentMenu;
+
+    private final List<OptionsMenu> subMenus = new ArrayList<>();
+
+    private Integer selectedOption;
+
+    private OptionsPageLoader pageLoader;
+
+    // rows are rendered straight from the snapshot columns, no Option is created per row
+    private Supplier<? extends ColumnarSnapshot> snapshotLoader;
+
+    private ColumnarSnapshot snapshot;
+
+    private NamePrefixIndex searchIndex;
+
+    private IntPredicate searchFilter;
+
+    // matches of the last /<prefix> command, shown instead of the current page until cleared
+    private NameSnapshot searchResults;
+
+    private String searchPrefix;
+
+    private int selectedKey;
+
+    private String selectedDescription;
+
+    private final int pageSize = DEFAULT_PAGE_SIZE;
+
+    private int pageIndex;
+
+    private boolean hasNextPage;
+
+    private boolean pageLoaded;
+
+    // keys after which each already visited page starts, the first page starts after key 0
+    private final List<Integer> pageStartKeys = new ArrayList<>(List.of(0));
+
+    private OptionActionCallback optionsAction;
+
+    private final MenuIO io;
+
+    OptionsMenu(MenuIO io, List<Option> optionsList) {
+        this.io = io;
+        this.optionsList = new ArrayList<>(optionsList);
+    }
+
+    OptionsMenu(MenuIO io, String title, List<Option> optionsList) {
+        this.io = io;
+        this.title = title;
+        this.optionsList = new ArrayList<>(optionsList);
+    }
+
+    OptionsMenu(MenuIO io, String title, List<Option> optionsList, String emptyMessage) {
+        this.io = io;
+        this.title = title;
+        this.optionsList = new ArrayList<>(optionsList);
+        this.emptyMessage = emptyMessage;
+    }
+
+    OptionsMenu(MenuIO io, List<Option> optionsList, String emptyMessage) {
+        this.io = io;
+        this.optionsList = new ArrayList<>(optionsList);
+        this.emptyMessage = emptyMessage;
+    }
+
+    OptionsMenu(MenuIO io, String title, OptionsPageLoader pageLoader, String emptyMessage) {
+        this.io = io;
+        this.title = title;
+        this.optionsList = new ArrayList<>();
+        this.pageLoader = pageLoader;
+        this.emptyMessage = emptyMessage;
+    }
+
+    OptionsMenu(MenuIO io, String title, Supplier<? extends ColumnarSnapshot> snapshotLoader, String emptyMessage) {
+        this.io = io;
+        this.title = title;
+        this.optionsList = new ArrayList<>();
+        this.snapshotLoader = snapshotLoader;
+        this.emptyMessage = emptyMessage;
+    }
+
+    private boolean isPaged() {
+        return pageLoader != null || isSnapshot();
+    }
+
+    private boolean isSnapshot() {
+        return snapshotLoader != null;
+    }
+
+    private int rowCount() {
+        if(searchResults != null) return searchResults.size();
+        return isSnapshot() ? Math.max(0, Math.min(pageSize, snapshot.size() - pageIndex * pageSize)) : optionsList.size();
+    }
+
+    private String describe(int index) {
+        if(searchResults != null) return searchResults.getName(index);
+        return isSnapshot() ? snapshot.getName(pageIndex * pageSize + index) : optionsList.get(index).getDescription();
+    }
+
+    private void loadPage(int index) {
+        searchResults = null;
+        if(isSnapshot()) {
+            if(snapshot == null) snapshot = snapshotLoader.get();
+            if(snapshot == null) {
+                // the query failed, show an empty list until the next reload
+                io.println("The list could not be loaded, try again later!");
+                snapshot = new ColumnarSnapshot(0);
+                snapshot.seal();
+            }
+            pageIndex = Math.max(0, Math.min(index, (snapshot.size() - 1) / pageSize));
+            hasNextPage = (pageIndex + 1) * pageSize < snapshot.size();
+            pageLoaded = true;
+            return;
+        }
+        List<Option> rows = pageLoader.load(pageStartKeys.get(index), pageSize + 1);
+        if(rows == null) {
+            io.println("The list could not be loaded, try again later!");
+            rows = List.of();
+        }
+        hasNextPage = rows.size() > pageSize;
+        optionsList = new ArrayList<>(hasNextPage ? rows.subList(0, pageSize) : rows);
+        pageIndex = index;
+        pageLoaded = true;
+        if(hasNextPage && pageStartKeys.size() == index + 1) {
+            pageStartKeys.add(optionsList.get(optionsList.size() - 1).getKey());
+        }
+        if(optionsAction != null) {
+            optionsList.forEach(option -> option.setAction(optionsAction));
+        }
+    }
+
+    private boolean goToPage(int index) {
+        if(index < 0) return false;
+        if(isSnapshot()) {
+            if(index * pageSize >= snapshot.size()) return false;
+            loadPage(index);
+            return true;
+        }
+        if(index < pageStartKeys.size()) {
+            loadPage(index);
+            return true;
+        }
+        // pages past the last visited one are only reachable by walking the keyset forward
+        loadPage(pageStartKeys.size() - 1);
+        while(pageIndex < index && hasNextPage) {
+            loadPage(pageIndex + 1);
+        }
+        return true;
+    }
+
+    private boolean navigate(String command) {
+        switch (command.toLowerCase()) {
+            case "n":
+                if(!hasNextPage) return false;
+                loadPage(pageIndex + 1);
+                return true;
+            case "p":
+                if(pageIndex == 0) return false;
+                loadPage(pageIndex - 1);
+                return true;
+            case "g":
+                return io.hasNextInt() && goToPage(io.nextInt() - 1);
+            default:
+                return false;
+        }
+    }
+
+    private void search(String prefix) {
+        if(prefix.isEmpty()) {
+            searchResults = null;
+            return;
+        }
+        if(!searchIndex.isReady()) {
+            io.println("Search is still loading, try again in a moment");
+            return;
+        }
+        NameSnapshot matches = searchIndex.search(prefix, pageSize, searchFilter);
+        if(matches.size() == 0) {
+            io.println("No matches for '" + prefix + "'");
+            return;
+        }
+        searchResults = matches;
+        searchPrefix = prefix;
+    }
+
+    private void select(int value) {
+        selectedOption = value;
+        if(value == 0) return;
+        int index = value - 1;
+        if(searchResults != null) {
+            selectedKey = searchResults.getId(index);
+            selectedDescription = searchResults.getName(index);
+        } else if(isSnapshot()) {
+            selectedKey = snapshot.getId(pageIndex * pageSize + index);
+            selectedDescription = snapshot.getName(pageIndex * pageSize + index);
+        } else {
+            selectedKey = optionsList.get(index).getKey();
+            selectedDescription = optionsList.get(index).getDescription();
+        }
+    }
+
+    private boolean read() {
+
+        while (true) {
+            if(io.hasNextInt()) {
+                int value = io.nextInt();
+                if(value >= 0 && value <= rowCount()) {
+                    select(value);
+                    return true;
+                }
+            } else if(io.hasNext()) {
+                String command = io.next();
+                if(searchIndex != null && command.startsWith("/")) {
+                    search((command.substring(1) + io.restOfLine()).strip());
+                    return false;
+                }
+                if(isPaged() && navigate(command)) return false;
+            }
+            io.skipLine();
+            io.println("invalid input, retry");
+        }
+
+    }
+
+
+
+    private void print() throws NullPointerException, EmptyMenuException {
+
+        io.println();
+
+        if(rowCount() == 0) throw new EmptyMenuException(emptyMessage);
+
+        if(title != null) {
+            io.println(title);
+        }
+
+        io.println();
+
+        for(int i = 0; i < rowCount(); i++) {
+            io.println((i + 1) + ". " + describe(i));
+        }
+
+        if(searchResults != null) {
+            io.println("Matches for '" + searchPrefix + "' (/ - back to the list)");
+        } else if(isPaged() && (pageIndex > 0 || hasNextPage)) {
+            io.println(
+                    "Page " + (pageIndex + 1) + " (n - next page, p - previous page, g <number> - go to page" +
+                            (searchIndex != null ? ", /<name> - search" : "") + ")"
+            );
+        }
+
+        io.println("0. " + (this.parentMenu != null ? "Back" : "Exit") );
+    }
+
+    // runs the menu loop starting at this menu, actions return where to go next so the stack never grows
+    public void show() throws RuntimeException {
+        OptionsMenu current = this;
+        while(current != null) {
+            current = current.step();
+        }
+    }
+
+    private OptionsMenu step() {
+        try {
+            if(isPaged() && !pageLoaded) loadPage(0);
+            do {
+                print();
+            } while (!read());
+            if(selectedOption == 0) return parentMenu;
+            OptionActionCallback action = searchResults != null || isSnapshot()
+                    ? optionsAction
+                    : optionsList.get(selectedOption-1).getAction();
+            searchResults = null;
+            if(action == null) {
+                io.println("No action defined");
+                return this;
+            }
+            Navigation navigation = action.callback();
+            return switch (navigation.getKind()) {
+                case TO -> navigation.getTarget();
+                case BACK -> parentMenu;
+                case STAY -> this;
+                case EXIT -> null;
+            };
+        } catch (EmptyMenuException e) {
+            io.println(e.getMessage());
+            return parentMenu;
+        }
+    }
+
+    public void reload() {
+        if(isSnapshot()) snapshot = null;
+        if(isPaged()) loadPage(pageIndex);
+    }
+
+    public void appendOption(Option option) {
+        if(isSnapshot()) {
+            // snapshots are read-only, the option shows up with the next reload
+            return;
+        }
+        if(isPaged()) {
+            // an unloaded menu picks the option up on first show, a non-final page when paging forward
+            if(!pageLoaded || hasNextPage) return;
+            if(optionsList.size() >= pageSize) {
+                hasNextPage = true;
+                if(pageStartKeys.size() == pageIndex + 1) {
+                    pageStartKeys.add(optionsList.get(optionsList.size() - 1).getKey());
+                }
+                return;
+            }
+        }
+        if(optionsAction != null) option.setAction(optionsAction);
+        optionsList.add(option);
+    }
+
+    public List<Option> getOptions() {
+        return Collections.unmodifiableList(optionsList);
+    }
+
+    public Integer getSelectedOption() {
+        return selectedOption;
+    }
+
+    public int getSelectedKey() {
+        return selectedKey;
+    }
+
+    public String getSelectedDescription() {
+        return selectedDescription;
+    }
+
+    // only for menus whose rows come through setOptionsAction, i.e. paged and snapshot menus
+    public void setSearchIndex(NamePrefixIndex searchIndex, IntPredicate searchFilter) {
+        this.searchIndex = searchIndex;
+        this.searchFilter = searchFilter;
+    }
+
+    public void addSubMenu(int optionIndex, OptionsMenu subMenuValue) throws IndexOutOfBoundsException {
+        optionsList.get(optionIndex).setAction(() -> Navigation.to(subMenuValue));
+        subMenuValue.parentMenu = this;
+        subMenus.add(subMenuValue);
+    }
+
+    public void addSubMenu(int optionIndex, OptionsMenu subMenuValue, Runnable beforeShow) throws IndexOutOfBoundsException {
+        optionsList.get(optionIndex).setAction(() -> {
+            beforeShow.run();
+            return Navigation.to(subMenuValue);
+        });
+        subMenuValue.parentMenu = this;
+        subMenus.add(subMenuValue);
+    }
+
+    public void addSubMenu(int optionIndex, OptionsMenu subMenuValue, Runnable beforeShow, OptionsMenu parent) throws IndexOutOfBoundsException {
+        optionsList.get(optionIndex).setAction(() -> {
+            beforeShow.run();
+            return Navigation.to(subMenuValue);
+        });
+        subMenuValue.parentMenu = parent;
+        subMenus.add(subMenuValue);
+    }
+
+    public void addSubMenuToOptions(OptionsMenu subMenuValue, Runnable beforeShow, OptionsMenu parent) {
+        setOptionsAction(() -> {
+            beforeShow.run();
+            return Navigation.to(subMenuValue);
+        });
+        subMenuValue.parentMenu = parent;
+        subMenus.add(subMenuValue);
+    }
+
+    public void setOptionsAction(OptionActionCallback action) {
+        optionsAction = action;
+        optionsList.forEach(option -> option.setAction(action));
+    }
+
+    public void setParentMenu(OptionsMenu menu) {
+        this.parentMenu = menu;
+    }
+
+    public void addOption(Option option) {
+        optionsList.add(option);
+    }
+
+    public void setOptionsList(List<Option> optionsList) {this.optionsList = optionsList;}
+
+    public void setTitle(String title) {
+        this.title = title;
+    }
+}
+
+
+class MenuIO {
+
+    private final Scanner scanner;
+
+    private final PrintStream out;
+
+    // set after reading a token, so the rest of that line is not mistaken for the next input line
+    private boolean midLine;
+
+    // set once a read ran out of input, which is how a closed socket shows up to the scanner
+    private boolean endOfInput;
+
+    MenuIO(InputStream in, PrintStream out) {
+        this.scanner = new Scanner(in);
+        this.out = out;
+    }
+
+    public boolean hasNextInt() {
+        return scanner.hasNextInt();
+    }
+
+    public int nextInt() {
+        midLine = true;
+        return read(scanner::nextInt);
+    }
+
+    public boolean hasNext() {
+        return scanner.hasNext();
+    }
+
+    public String next() {
+        midLine = true;
+        return read(scanner::next);
+    }
+
+    public void skipLine() {
+        read(scanner::nextLine);
+        midLine = false;
+    }
+
+    // whatever follows the last token on its line, possibly empty
+    public String restOfLine() {
+        midLine = false;
+        return read(scanner::nextLine);
+    }
+
+    public String readLine() {
+        if(midLine) {
+            midLine = false;
+            String rest = read(scanner::nextLine).trim();
+            if(!rest.isEmpty()) return rest;
+        }
+        return read(scanner::nextLine);
+    }
+
+    public boolean isEndOfInput() {
+        return endOfInput;
+    }
+
+    private <T> T read(Supplier<T> reader) {
+        try {
+            return reader.get();
+        } catch (InputMismatchException e) {
+            throw e;
+        } catch (NoSuchElementException e) {
+            endOfInput = true;
+            throw e;
+        }
+    }
+
+    public void println() {
+        out.println();
+    }
+
+    public void println(String line) {
+        out.println(line);
     }
 }
 
-@FunctionalInterface
-interface OptionActionCallback {
-    void callback();
-}
+class CarSharingServer {
 
-class Option {
+    private final int port;
 
-    final private String description;
+    private final IRentalHistoryDao rentalHistoryDao;
 
-    private OptionActionCallback action = () -> System.out.println("No action defined");
+    private final AvailabilityIndex availabilityIndex;
 
-    Option(String description) {
-        this.description = description;
-    }
+    private final IReservationDao reservationDao;
 
-    Option(String description, OptionActionCallback action) {
-        this.description = description;
-        this.action = action;
-    }
+    private final ReservationIndex reservationIndex;
 
-    public String getDescription() {
-        return description;
+    private final SearchIndexes searchIndexes;
+
+    private final ConnectionPool connectionPool;
+
+    private final ICompanyDao companyDao;
+
+    private final ICarDao carDao;
+
+    private final ICustomerDao customerDao;
+
+    CarSharingServer(
+            int port,
+            ICompanyDao companyDao,
+            ICarDao carDao,
+            ICustomerDao customerDao,
+            IRentalHistoryDao rentalHistoryDao,
+            AvailabilityIndex availabilityIndex,
+            IReservationDao reservationDao,
+            ReservationIndex reservationIndex,
+            SearchIndexes searchIndexes,
+            ConnectionPool connectionPool
+    ) {
+        this.port = port;
+        this.searchIndexes = searchIndexes;
+        this.rentalHistoryDao = rentalHistoryDao;
+        this.availabilityIndex = availabilityIndex;
+        this.reservationDao = reservationDao;
+        this.reservationIndex = reservationIndex;
+        this.connectionPool = connectionPool;
+        this.companyDao = companyDao;
+        this.carDao = carDao;
+        this.customerDao = customerDao;
     }
 
-    public OptionActionCallback getAction() {
-        return action;
+    // virtual threads when the runtime has them (Java 21+), a thread per session otherwise
+    static ExecutorService newSessionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
     }
 
-    public void setAction(OptionActionCallback value) {
-        action = value;
+    public void serve() throws IOException {
+        ExecutorService executor = newSessionExecutor();
+        try (ServerSocket serverSocket = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress())) {
+            System.out.println("Serving car sharing sessions on " + serverSocket.getLocalSocketAddress());
+            while(!serverSocket.isClosed()) {
+                Socket socket = serverSocket.accept();
+                executor.execute(() -> handle(socket));
+            }
+        } finally {
+            executor.shutdown();
+        }
     }
-}
 
-class EmptyMenuException extends Exception {
-    public EmptyMenuException(String message) {
-        super(message);
+    private void handle(Socket socket) {
+        MenuIO io = null;
+        try (socket) {
+            PrintStream out = new PrintStream(socket.getOutputStream(), true);
+            io = new MenuIO(socket.getInputStream(), out);
+            new CarSharingSession(
+                    companyDao,
+                    carDao,
+                    customerDao,
+                    rentalHistoryDao,
+                    availabilityIndex,
+                    reservationDao,
+                    reservationIndex,
+                    searchIndexes,
+                    connectionPool,
+                    io
+            ).run();
+        } catch (NoSuchElementException e) {
+            // only the client disconnecting in the middle of a prompt is expected here
+            if(io == null || !io.isEndOfInput()) e.printStackTrace();
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        }
     }
 }
 
+class CarSharingSession {
 
-class OptionsMenu {
+    static private final Duration UTILIZATION_WINDOW = Duration.ofDays(30);
 
-    private List<Option> optionsList;
+    static private final int UTILIZATION_REPORT_SIZE = 20;
 
-    private String title = "Choose an option: ";
+    static private final String RESERVATION_TIME_PATTERN = "yyyy-MM-dd HH:mm";
 
-    private String emptyMessage = "No options assigned";
+    static private final DateTimeFormatter RESERVATION_TIME_FORMAT = DateTimeFormatter.ofPattern(RESERVATION_TIME_PATTERN)
+            .withZone(ZoneId.systemDefault());
 
-    private OptionsMenu parentMenu;
+    private final ICompanyDao companyDao;
 
-    private final List<OptionsMenu> subMenus = new ArrayList<>();
+    private final ICarDao carDao;
 
-    private Integer selectedOption;
+    private final ICustomerDao customerDao;
 
-    private final static Scanner scanner = new Scanner(System.in);
+    private final MenuIO io;
 
-    OptionsMenu(List<Option> optionsList) {this.optionsList = new ArrayList<>(optionsList);}
+    private final IRentalHistoryDao rentalHistoryDao;
 
-    OptionsMenu(String title, List<Option> optionsList) {
-        this.title = title;
-        this.optionsList = new ArrayList<>(optionsList);
-    }
+    private final AvailabilityIndex availabilityIndex;
 
-    OptionsMenu(String title, List<Option> optionsList, String emptyMessage) {
-        this.title = title;
-        this.optionsList = new ArrayList<>(optionsList);
-        this.emptyMessage = emptyMessage;
-    }
+    private final IReservationDao reservationDao;
 
-    OptionsMenu(List<Option> optionsList, String emptyMessage) {
-        this.optionsList = new ArrayList<>(optionsList);
-        this.emptyMessage = emptyMessage;
-    }
+    private final ReservationIndex reservationIndex;
 
-    private void read() {
+    private final SearchIndexes searchIndexes;
 
-        if(scanner.hasNextInt()) {
-            selectedOption = scanner.nextInt();
-        }
-        while (selectedOption == null || !(selectedOption >= 0 && selectedOption <= optionsList.size())) {
-            scanner.nextLine();
-            System.out.println("invalid input, retry");
-            if(scanner.hasNextInt()) {
-                selectedOption = scanner.nextInt();
-            }
-        }
+    private final ConnectionPool connectionPool;
 
-    }
+    private Company currentCompany;
 
+    private Customer currentCustomer;
 
+    private final OptionsMenu initial;
 
-    private void print() throws NullPointerException, EmptyMenuException {
+    private final OptionsMenu manager;
 
-        System.out.println();
+    private final OptionsMenu companiesManager;
 
-        if(optionsList.isEmpty()) throw new EmptyMenuException(emptyMessage);
+    private final OptionsMenu companiesCustomer;
 
-        if(title != null) {
-            System.out.println(title);
-        }
+    private final OptionsMenu customers;
 
-        System.out.println();
+    private final OptionsMenu cars;
 
-        for(int i = 0; i < optionsList.size(); i++) {
-            System.out.println((i + 1) + ". " + optionsList.get(i).getDescription());
-        }
+    private final OptionsMenu rentedCars;
 
-        System.out.println("0. " + (this.parentMenu != null ? "Back" : "Exit") );
-    }
+    private Instant reservationStartsAt;
 
-    public void show() throws RuntimeException {
-        try {
-            print();
-            read();
-            if(selectedOption > 0) {
-                optionsList.get(selectedOption-1).getAction().callback();
-            } else {
-                if(parentMenu != null) parentMenu.show();
-            }
-        } catch (EmptyMenuException e) {
-            System.out.println(e.getMessage());
-            if(parentMenu != null) parentMenu.show();
-        }
-    }
+    private Instant reservationEndsAt;
 
-    public List<Option> getOptions() {
-        return Collections.unmodifiableList(optionsList);
-    }
+    CarSharingSession(
+            ICompanyDao companyDao,
+            ICarDao carDao,
+            ICustomerDao customerDao,
+            IRentalHistoryDao rentalHistoryDao,
+            AvailabilityIndex availabilityIndex,
+            IReservationDao reservationDao,
+            ReservationIndex reservationIndex,
+            SearchIndexes searchIndexes,
+            ConnectionPool connectionPool,
+            MenuIO io
+    ) {
+        this.companyDao = companyDao;
+        this.carDao = carDao;
+        this.customerDao = customerDao;
+        this.rentalHistoryDao = rentalHistoryDao;
+        this.availabilityIndex = availabilityIndex;
+        this.reservationDao = reservationDao;
+        this.reservationIndex = reservationIndex;
+        this.searchIndexes = searchIndexes;
+        this.connectionPool = connectionPool;
+        this.io = io;
 
-    public Integer getSelectedOption() {
-        return selectedOption;
-    }
+        initial = new OptionsMenu(
+                io,
+                "Welcome select an option: ",
+                List.of(
+                        new Option("Log in as a manager"),
+                        new Option("Log in as a customer"),
+                        new Option("Create a customer")
+                )
+        );
 
-    public void addSubMenu(int optionIndex, OptionsMenu subMenuValue) throws IndexOutOfBoundsException {
-        optionsList.get(optionIndex).setAction(subMenuValue::show);
-        subMenuValue.parentMenu = this;
-        subMenus.add(subMenuValue);
-    }
+        // the reports read H2, an in-memory session has neither a pool nor rental history
+        Option queryStatistics = new Option("Query statistics");
+        Option companyUtilization = new Option("Company utilization");
+        Option carUtilization = new Option("Car utilization");
+
+        List<Option> managerOptions = new ArrayList<>(List.of(
+                new Option("Company list"),
+                new Option("Create a company")
+        ));
+        if(connectionPool != null) managerOptions.add(queryStatistics);
+        if(rentalHistoryDao != null) managerOptions.add(companyUtilization);
+        manager = new OptionsMenu(io, managerOptions);
+
+        companiesManager = new OptionsMenu(
+                io,
+                "Choose a company: ",
+                this::loadCompaniesPage,
+                "The company list is empty!"
+        );
 
-    public void addSubMenu(int optionIndex, OptionsMenu subMenuValue, OptionActionCallback beforeShow) throws IndexOutOfBoundsException {
-        optionsList.get(optionIndex).setAction(() -> {
-            beforeShow.callback();
-            subMenuValue.show();
-        });
-        subMenuValue.parentMenu = this;
-        subMenus.add(subMenuValue);
-    }
+        companiesCustomer = new OptionsMenu(
+                io,
+                "Choose a company: ",
+                this::loadCompaniesPage,
+                "The company list is empty!"
+        );
 
-    public void addSubMenu(int optionIndex, OptionsMenu subMenuValue, OptionActionCallback beforeShow, OptionsMenu parent) throws IndexOutOfBoundsException {
-        optionsList.get(optionIndex).setAction(() -> {
-            beforeShow.callback();
-            subMenuValue.show();
-        });
-        subMenuValue.parentMenu = parent;
-        subMenus.add(subMenuValue);
-    }
+        customers = new OptionsMenu(
+                io,
+                "Choose a customer: ",
+                this::loadCustomersPage,
+                "The customer list is empty!"
+        );
 
-    public void setParentMenu(OptionsMenu menu) {
-        this.parentMenu = menu;
-    }
+        List<Option> carsOptions = new ArrayList<>(List.of(
+                new Option("Car list"),
+                new Option("Create a car")
+        ));
+        if(rentalHistoryDao != null) carsOptions.add(carUtilization);
+        cars = new OptionsMenu(io, carsOptions);
+
+        rentedCars = new OptionsMenu(
+                io,
+                List.of(
+                        new Option("Rent a car"),
+                        new Option("Return a rented car"),
+                        new Option("My rented car"),
+                        new Option("Reserve a car"),
+                        new Option("My reservations")
+                )
+        );
 
-    public void addOption(Option option) {
-        optionsList.add(option);
-    }
+        companiesManager.setSearchIndex(searchIndexes.getCompanies(), null);
 
-    public void setOptionsList(List<Option> optionsList) {this.optionsList = optionsList;}
+        companiesCustomer.setSearchIndex(searchIndexes.getCompanies(), null);
 
-    public void setTitle(String title) {
-        this.title = title;
-    }
-}
+        customers.setSearchIndex(searchIndexes.getCustomers(), null);
 
+        initial.addSubMenu(0, manager);
 
-public class Main {
+        initial.addSubMenu(1, customers);
 
+        initial.getOptions().get(2).setAction(this::createCustomerCallback);
 
-    static private final CompanyDao companyDao = new CompanyDao();
-    static private final CarDao carDao = new CarDao();
+        manager.addSubMenu(0, companiesManager);
 
-    static private final CustomerDao customerDao = new CustomerDao();
+        manager.getOptions().get(1).setAction(this::createCompanyCallback);
 
-    static private Company currentCompany;
+        queryStatistics.setAction(this::printQueryStatsCallback);
 
-    static private Customer currentCustomer;
+        companyUtilization.setAction(this::printCompanyUtilizationCallback);
 
-    static private final OptionsMenu initial = new OptionsMenu(
-            "Welcome select an option: ",
-            List.of(
-                    new Option("Log in as a manager"),
-                    new Option("Log in as a customer"),
-                    new Option("Create a customer")
-            )
-    );
+        companiesManager.addSubMenuToOptions(cars, this::beforeShowCarsMenuCallback, manager);
 
-    static private final OptionsMenu manager = new OptionsMenu(
-            List.of(
-                    new Option("Company list"),
-                    new Option("Create a company")
-            )
-    );
+        customers.addSubMenuToOptions(rentedCars, this::beforeShowRentedCarsCallback, initial);
 
-    static private final OptionsMenu companiesManager = new OptionsMenu(
-            "Choose a company: ",
-            companyDao.getAllCompanies()
-                    .stream()
-                    .map(e -> new Option(e.getName()))
-                    .toList(),
-            "The company list is empty!"
-    );
+        cars.getOptions().get(0).setAction(this::printCarListCallback);
 
-    static private final OptionsMenu companiesCustomer = new OptionsMenu(
-            "Choose a company: ",
-            companiesManager.getOptions(),
-            "The company list is empty!"
-    );
+        cars.getOptions().get(1).setAction(this::createCarCallback);
 
-    static private final OptionsMenu customers = new OptionsMenu(
-            "Choose a customer: ",
-            customerDao.getAllCustomers()
-                    .stream()
-                    .map(e -> new Option(e.getName()))
-                    .toList(),
-            "The customer list is empty!"
-    );
+        carUtilization.setAction(this::printCarUtilizationCallback);
 
-    static private final OptionsMenu cars = new OptionsMenu(
-            List.of(
-                    new Option("Car list"),
-                    new Option("Create a car")
-            )
-    );
+        rentedCars.getOptions().get(0).setAction(this::rentCarCallback);
 
-    static private final OptionsMenu rentedCars = new OptionsMenu(
-            List.of(
-                    new Option("Rent a car"),
-                    new Option("Return a rented car"),
-                    new Option("My rented car")
-            )
-    );
+        rentedCars.getOptions().get(1).setAction(this::returnRentedCarCallback);
 
-    static List<Option> getAllCompaniesAsOptionsList() {
-        return companyDao.getAllCompanies()
-                .stream()
-                .map(e -> new Option(e.getName()))
+        rentedCars.getOptions().get(2).setAction(this::printRentedCarCallback);
+
+        rentedCars.getOptions().get(3).setAction(this::reserveCarCallback);
+
+        rentedCars.getOptions().get(4).setAction(this::printReservationsCallback);
+    }
+
+    public void run() {
+        initial.show();
+    }
+
+    private List<Option> loadCompaniesPage(int afterKey, int limit) {
+        List<Company> page = companyDao.getCompaniesPage(afterKey, limit);
+        if(page == null) return null;
+        return page.stream()
+                .map(e -> new Option(e.getId(), e.getName()))
                 .toList();
     }
 
-    static List<Option> getAllCustomersAsOptionsList() {
-        return customerDao.getAllCustomers()
-                .stream()
-                .map(e -> new Option(e.getName()))
+    private List<Option> loadCustomersPage(int afterKey, int limit) {
+        List<Customer> page = customerDao.getCustomersPage(afterKey, limit);
+        if(page == null) return null;
+        return page.stream()
+                .map(e -> new Option(e.getId(), e.getName()))
                 .toList();
     }
 
-    static private void beforeShowCarsMenuCallback() {
-        currentCompany = companyDao.getByName(
-                companiesManager.getOptions().get(companiesManager.getSelectedOption() - 1).getDescription()
-        );
+    private void beforeShowCarsMenuCallback() {
+        currentCompany = companyDao.getById(companiesManager.getSelectedKey());
         cars.setTitle("'" + currentCompany.getName() + "' company: ");
     }
 
-    static private void beforeShowRentedCarsCallback() {
-        currentCustomer = customerDao.getCustomerByName(
-                customers.getOptions().get(customers.getSelectedOption() - 1).getDescription()
-        );
+    private void beforeShowRentedCarsCallback() {
+        currentCustomer = customerDao.getCustomerById(customers.getSelectedKey());
         rentedCars.setTitle("Welcome '" + currentCustomer.getName() + "': ");
     }
 
+    private Navigation createCompanyCallback() {
+        io.println();
+        io.println("Enter the company name:");
+        String name = io.readLine();
+        Company company = companyDao.createCompany(name);
+        if(company != null) {
+            io.println("The company was created!");
+            companiesManager.appendOption(new Option(company.getId(), company.getName()));
+            companiesCustomer.appendOption(new Option(company.getId(), company.getName()));
+            searchIndexes.getCompanies().add(company.getId(), company.getName());
+        } else {
+            io.println("The company could not be created!");
+        }
+        return Navigation.to(manager);
+    }
+
+    private String formatLatencies(LatencyHistogram histogram) {
+        if(histogram.getTotalCount() == 0) return "-";
+        return String.format(
+                Locale.ROOT,
+                "p50 %.1f us, p99 %.1f us, max %.1f us",
+                histogram.getValueAtPercentile(50) / 1_000.0,
+                histogram.getValueAtPercentile(99) / 1_000.0,
+                histogram.getMax() / 1_000.0
+        );
+    }
+
+    private void printCacheStats(String label, EntityCache<?> cache) {
+        io.println(String.format(
+                Locale.ROOT,
+                "%s: %.1f%% hits (%d hits, %d misses, %d evictions, %d entries)",
+                label,
+                cache.getHitRate() * 100,
+                cache.getHits(),
+                cache.getMisses(),
+                cache.getEvictions(),
+                cache.size()
+        ));
+    }
 
-    static private void createCompanyCallback() {
-        System.out.println();
-        System.out.println("Enter the company name:");
-        String name = new java.util.Scanner(System.in).nextLine();
-        companyDao.createCompany(name);
-        System.out.println("The company was created!");
-        companiesManager.setOptionsList(getAllCompaniesAsOptionsList());
-        for(int i = 0; i < companiesManager.getOptions().size(); i++) {
-            companiesManager.addSubMenu(i, cars, Main::beforeShowCarsMenuCallback, manager);
+    private Navigation printQueryStatsCallback() {
+        io.println();
+        io.println(String.format(
+                Locale.ROOT,
+                "Connections: %d in use, %d idle, %d borrows, wait avg %.2f ms, max %.2f ms",
+                connectionPool.getConnectionsInUse(),
+                connectionPool.getIdleConnections(),
+                connectionPool.getBorrowCount(),
+                connectionPool.getAverageWaitMillis(),
+                connectionPool.getMaxWaitMillis()
+        ));
+        if(companyDao instanceof CachingCompanyDao caching) printCacheStats("Company cache", caching.getCache());
+        if(carDao instanceof CachingCarDao caching) printCacheStats("Car cache", caching.getCache());
+        if(customerDao instanceof CachingCustomerDao caching) printCacheStats("Customer cache", caching.getCache());
+        Map<String, StatementStats> statementStats = connectionPool.getQueryStats().getStatementStats();
+        if(statementStats.isEmpty()) {
+            io.println("No queries recorded yet!");
+            return Navigation.to(manager);
         }
-        companiesCustomer.setOptionsList(getAllCompaniesAsOptionsList());
-        for(int i = 0; i < companiesCustomer.getOptions().size(); i++) {
-            companiesCustomer.addSubMenu(i, rentedCars, Main::beforeShowRentedCarsCallback, manager);
+        for(Map.Entry<String, StatementStats> entry: statementStats.entrySet()) {
+            StatementStats stats = entry.getValue();
+            io.println(entry.getKey());
+            io.println("  calls: " + stats.getExecute().getTotalCount());
+            io.println("  acquire: " + formatLatencies(stats.getAcquire()));
+            io.println("  execute: " + formatLatencies(stats.getExecute()));
+            io.println("  mapping: " + formatLatencies(stats.getMapping()));
         }
-        manager.show();
+        return Navigation.to(manager);
     }
 
-    static private void createCustomerCallback() {
-        System.out.println();
-        System.out.println("Enter the customer name:");
-        String name = new java.util.Scanner(System.in).nextLine();
-        customerDao.createCustomer(name);
-        System.out.println("The customer was created!");
-        Option newCustomerOption = new Option(name);
-        customers.setOptionsList(getAllCustomersAsOptionsList());
-        for(int i = 0; i < customers.getOptions().size(); i++) {
-            customers.addSubMenu(i, rentedCars, Main::beforeShowRentedCarsCallback, initial);
+    private void printUtilization(List<Utilization> utilization) {
+        int printed = 0;
+        for(Utilization row: utilization) {
+            io.println(String.format(
+                    Locale.ROOT,
+                    "%d. %s: %.1f%% (%.1f h rented)",
+                    ++printed,
+                    row.getName(),
+                    row.getRatio() * 100,
+                    row.getRentedSeconds() / 3_600.0
+            ));
         }
-        initial.show();
     }
 
-    static private void showRentedCarsCallBack() {
-        Company selectedCompany = companyDao.getByName(
-                companiesCustomer.getOptions().get(companiesCustomer.getSelectedOption() - 1).getDescription()
+    private Navigation printCompanyUtilizationCallback() {
+        io.println();
+        Instant now = Instant.now();
+        List<Utilization> utilization = rentalHistoryDao.getCompanyUtilization(
+                now.minus(UTILIZATION_WINDOW),
+                now,
+                UTILIZATION_REPORT_SIZE
+        );
+        if(utilization == null || utilization.isEmpty()) {
+            io.println("The company list is empty!");
+        } else {
+            io.println("Company utilization, last " + UTILIZATION_WINDOW.toDays() + " days:");
+            printUtilization(utilization);
+        }
+        return Navigation.to(manager);
+    }
+
+    private Navigation printCarUtilizationCallback() {
+        io.println();
+        Instant now = Instant.now();
+        List<Utilization> utilization = rentalHistoryDao.getCarUtilization(
+                currentCompany.getId(),
+                now.minus(UTILIZATION_WINDOW),
+                now,
+                UTILIZATION_REPORT_SIZE
         );
+        if(utilization == null || utilization.isEmpty()) {
+            io.println("The car list is empty!");
+        } else {
+            io.println("'" + currentCompany.getName() + "' car utilization, last " + UTILIZATION_WINDOW.toDays() + " days:");
+            printUtilization(utilization);
+        }
+        return Navigation.to(cars);
+    }
+
+    private Navigation createCustomerCallback() {
+        io.println();
+        io.println("Enter the customer name:");
+        String name = io.readLine();
+        Customer customer = customerDao.createCustomer(name);
+        if(customer != null) {
+            io.println("The customer was created!");
+            customers.appendOption(new Option(customer.getId(), customer.getName()));
+            searchIndexes.getCustomers().add(customer.getId(), customer.getName());
+        } else {
+            io.println("The customer could not be created!");
+        }
+        return Navigation.to(initial);
+    }
+
+    private Navigation showRentedCarsCallBack() {
+        int companyId = companiesCustomer.getSelectedKey();
 
         OptionsMenu carsSelector = new OptionsMenu(
+                io,
                 "Choose a car: ",
-                carDao.getAvailableCarsByCompanyId(selectedCompany.getId())
-                        .stream()
-                        .map((e) -> new Option(e.getName()))
-                        .toList(),
+                () -> availabilityIndex.snapshotAvailableCars(companyId),
                 "No available cars!"
         );
         carsSelector.setParentMenu(rentedCars);
-        for(Option option: carsSelector.getOptions()) {
-            option.setAction(() -> {
-                Car rentedCar = carDao.getCarByName(
-                        carsSelector.getOptions().get(carsSelector.getSelectedOption() - 1).getDescription()
-                );
-                customerDao.setCustomerRentedCarId(currentCustomer.getName(), rentedCar.getId());
-                currentCustomer = customerDao.getCustomerByName(currentCustomer.getName());
-                System.out.println("You rented '" + rentedCar.getName()  + "'");
-                rentedCars.show();
-            });
-        }
-        carsSelector.show();
+        carsSelector.setSearchIndex(
+                searchIndexes.getCars(),
+                carId -> availabilityIndex.isAvailable(companyId, carId)
+        );
+        carsSelector.setOptionsAction(() -> {
+            int carId = carsSelector.getSelectedKey();
+            String carName = carsSelector.getSelectedDescription();
+            RentResult result = customerDao.rentCar(currentCustomer.getId(), carId);
+            currentCustomer = customerDao.getCustomerById(currentCustomer.getId());
+            if(result == RentResult.RENTED || result == RentResult.CAR_TAKEN) {
+                availabilityIndex.markRented(carId);
+            }
+            switch (result) {
+                case RENTED -> io.println("You rented '" + carName  + "'");
+                case CAR_TAKEN -> {
+                    io.println("'" + carName + "' has just been rented, choose another car!");
+                    carsSelector.reload();
+                    return Navigation.to(carsSelector);
+                }
+                case ALREADY_RENTING -> io.println("You've already rented a car!");
+                case FAILED -> io.println("The car could not be rented, try again!");
+            }
+            return Navigation.to(rentedCars);
+        });
+        return Navigation.to(carsSelector);
     }
 
-    static private void rentCarCallback() {
+    private Navigation rentCarCallback() {
         companiesCustomer.setParentMenu(rentedCars);
         if(currentCustomer.getRentedCarId() != null) {
-            System.out.println();
-            System.out.println("You've already rented a car!");
-            rentedCars.show();
+            io.println();
+            io.println("You've already rented a car!");
+            return Navigation.to(rentedCars);
         } else {
-            for(Option option: companiesCustomer.getOptions()) {
-                option.setAction(Main::showRentedCarsCallBack);
-            }
-            companiesCustomer.show();
+            companiesCustomer.setOptionsAction(this::showRentedCarsCallBack);
+            return Navigation.to(companiesCustomer);
         }
     }
 
-    static private void returnRentedCarCallback() {
-        System.out.println();
+    private Navigation returnRentedCarCallback() {
+        io.println();
         if(currentCustomer.getRentedCarId() != null) {
-            customerDao.setCustomerRentedCarId(
-                    currentCustomer.getName(),
-                    null
-            );
-            currentCustomer = customerDao.getCustomerByName(currentCustomer.getName());
-            System.out.println("You've returned a rented car!");
+            if(customerDao.returnCar(currentCustomer.getId())) {
+                availabilityIndex.markReturned(carDao.getCarById(currentCustomer.getRentedCarId()));
+            }
+            currentCustomer = customerDao.getCustomerById(currentCustomer.getId());
+            io.println("You've returned a rented car!");
         } else {
-            System.out.println("You didn't rent a car!");
+            io.println("You didn't rent a car!");
         }
-        rentedCars.show();;
+        return Navigation.to(rentedCars);
     }
 
-    static private void printRentedCarCallback() {
-        System.out.println();
-        if(currentCustomer.getRentedCarId() != null) {
-            Car rentedCar = carDao.getCarById(currentCustomer.getRentedCarId());
-            Company company = companyDao.getById(rentedCar.getCompanyId());
-            System.out.println("You rented car:");
-            System.out.println(rentedCar.getName());
-            System.out.println("Company:");
-            System.out.println(company.getName());
-        } else {
-            System.out.println("You didn't rent a car!");
+    private Instant readReservationTime(String label) {
+        io.println("Enter the " + label + " (" + RESERVATION_TIME_PATTERN + "):");
+        String line = io.readLine().trim();
+        try {
+            return LocalDateTime.parse(line, RESERVATION_TIME_FORMAT).atZone(ZoneId.systemDefault()).toInstant();
+        } catch (DateTimeParseException e) {
+            io.println("'" + line + "' is not a " + RESERVATION_TIME_PATTERN + " time!");
+            return null;
+        }
+    }
+
+    private Navigation reserveCarCallback() {
+        io.println();
+        Instant startsAt = readReservationTime("start");
+        if(startsAt == null) return Navigation.to(rentedCars);
+        Instant endsAt = readReservationTime("end");
+        if(endsAt == null) return Navigation.to(rentedCars);
+        if(!startsAt.isAfter(Instant.now())) {
+            io.println("A reservation has to start in the future!");
+            return Navigation.to(rentedCars);
+        }
+        if(!endsAt.isAfter(startsAt)) {
+            io.println("A reservation has to end after it starts!");
+            return Navigation.to(rentedCars);
+        }
+        reservationStartsAt = startsAt;
+        reservationEndsAt = endsAt;
+        companiesCustomer.setParentMenu(rentedCars);
+        companiesCustomer.setOptionsAction(this::showReservableCarsCallback);
+        return Navigation.to(companiesCustomer);
+    }
+
+    private Navigation showReservableCarsCallback() {
+        if(!reservationIndex.awaitLoaded()) {
+            io.println("Reservations could not be loaded, try again later!");
+            return Navigation.to(rentedCars);
         }
-        rentedCars.show();
+        CarSnapshot companyCars = carDao.snapshotCarsByCompanyId(companiesCustomer.getSelectedKey());
+        Instant startsAt = reservationStartsAt;
+        Instant endsAt = reservationEndsAt;
+        String window = RESERVATION_TIME_FORMAT.format(startsAt) + " to " + RESERVATION_TIME_FORMAT.format(endsAt);
+
+        OptionsMenu carsSelector = new OptionsMenu(
+                io,
+                "Choose a car: ",
+                () -> reservationIndex.snapshotFreeCars(companyCars, startsAt, endsAt),
+                "No cars are free from " + window + "!"
+        );
+        carsSelector.setParentMenu(rentedCars);
+        carsSelector.setSearchIndex(
+                searchIndexes.getCars(),
+                carId -> companyCars != null && companyCars.indexOfId(carId) >= 0
+                        && reservationIndex.isFree(carId, startsAt, endsAt)
+        );
+        carsSelector.setOptionsAction(() -> {
+            int carId = carsSelector.getSelectedKey();
+            String carName = carsSelector.getSelectedDescription();
+            ReserveResult result = reservationDao.reserveCar(currentCustomer.getId(), carId, startsAt, endsAt);
+            switch (result) {
+                case RESERVED -> {
+                    reservationIndex.add(carId, startsAt, endsAt);
+                    io.println("You reserved '" + carName + "' from " + window);
+                }
+                case CAR_TAKEN -> {
+                    io.println("'" + carName + "' has just been reserved, choose another car!");
+                    carsSelector.reload();
+                    return Navigation.to(carsSelector);
+                }
+                case FAILED -> io.println("The car could not be reserved, try again!");
+            }
+            return Navigation.to(rentedCars);
+        });
+        return Navigation.to(carsSelector);
     }
 
-    static private void printCarListCallback() {
-        System.out.println();
-        System.out.println("'" + currentCompany.getName() + "' cars:");
-        List<Car> carsList = carDao.getCarsByCompanyId(currentCompany.getId());
-        if(!carsList.isEmpty()) {
-            for(int i = 0; i < carsList.size(); i++) {
-                System.out.println((i + 1) + ". " + carsList.get(i).getName());
+    private Navigation printReservationsCallback() {
+        io.println();
+        List<Reservation> reservations = reservationDao.getReservationsByCustomerId(currentCustomer.getId(), Instant.now());
+        if(reservations == null || reservations.isEmpty()) {
+            io.println("You have no reservations!");
+        } else {
+            io.println("Your reservations:");
+            int printed = 0;
+            for(Reservation reservation: reservations) {
+                Car car = carDao.getCarById(reservation.getCarId());
+                io.println(String.format(
+                        "%d. %s: %s to %s",
+                        ++printed,
+                        car == null ? "#" + reservation.getCarId() : car.getName(),
+                        RESERVATION_TIME_FORMAT.format(reservation.getStartsAt()),
+                        RESERVATION_TIME_FORMAT.format(reservation.getEndsAt())
+                ));
             }
+        }
+        return Navigation.to(rentedCars);
+    }
+
+    private Navigation printRentedCarCallback() {
+        io.println();
+        CustomerRental rental = customerDao.getCustomerRental(currentCustomer.getId());
+        if(rental != null && rental.getCar() != null) {
+            io.println("You rented car:");
+            io.println(rental.getCar().getName());
+            io.println("Company:");
+            io.println(rental.getCompany().getName());
         } else {
-            System.out.println("The car list is empty!");
+            io.println("You didn't rent a car!");
+        }
+        return Navigation.to(rentedCars);
+    }
+
+    private Navigation printCarListCallback() {
+        io.println();
+        io.println("'" + currentCompany.getName() + "' cars:");
+        CarSnapshot companyCars = carDao.snapshotCarsByCompanyId(currentCompany.getId());
+        int rows = companyCars == null ? 0 : companyCars.size();
+        for(int row = 0; row < rows; row++) {
+            io.println((row + 1) + ". " + companyCars.getName(row));
         }
-        cars.show();
+        if(rows == 0) {
+            io.println("The car list is empty!");
+        }
+        return Navigation.to(cars);
     }
 
-    static private void createCarCallback() {
-        System.out.println();
-        System.out.println("Enter the car name:");
-        String name = new java.util.Scanner(System.in).nextLine();
-        carDao.createCar(name, currentCompany.getId());
-        System.out.println("The car was added!");
-        cars.show();
+    private Navigation createCarCallback() {
+        io.println();
+        io.println("Enter the car name:");
+        String name = io.readLine();
+        Car car = carDao.createCar(name, currentCompany.getId());
+        if(car != null) {
+            availabilityIndex.addCar(car);
+            searchIndexes.getCars().add(car.getId(), car.getName());
+            io.println("The car was added!");
+        } else {
+            io.println("The car could not be added!");
+        }
+        return Navigation.to(cars);
     }
+}
 
+class StartupReport {
 
+    private final long startNanos = System.nanoTime();
 
+    private long lastNanos = startNanos;
 
-    public static void main(String[] args) {
+    private final Map<String, Long> phaseNanos = new LinkedHashMap<>();
+
+    public synchronized void mark(String phase) {
+        long now = System.nanoTime();
+        phaseNanos.put(phase, now - lastNanos);
+        lastNanos = now;
+    }
+
+    public long getElapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    public synchronized void print() {
+        StringBuilder phases = new StringBuilder();
+        phaseNanos.forEach((phase, nanos) -> phases
+                .append(phases.length() == 0 ? "" : ", ")
+                .append(phase)
+                .append(' ')
+                .append(TimeUnit.NANOSECONDS.toMillis(nanos))
+                .append(" ms"));
+        System.err.printf("Ready after %d ms (%s)%n", getElapsedMillis(), phases);
+    }
+}
+
+public class Main {
+
+
+    static private final ConnectionPool connectionPool = new ConnectionPool(
+            "jdbc:h2:./src/carsharing/db/carsharing",
+            4,
+            60_000
+    );
+
+    static private final int ENTITY_CACHE_SIZE = 10_000;
+
+    static private final long ENTITY_CACHE_TTL_MILLIS = 30_000;
+
+    static private final RentalHistoryDao rentalHistoryDao = new RentalHistoryDao(connectionPool);
+
+    static private final ICompanyDao companyDao = new CachingCompanyDao(
+            new CompanyDao(connectionPool),
+            ENTITY_CACHE_SIZE,
+            ENTITY_CACHE_TTL_MILLIS
+    );
+    static private final ICarDao carDao = new CachingCarDao(
+            new CarDao(connectionPool),
+            ENTITY_CACHE_SIZE,
+            ENTITY_CACHE_TTL_MILLIS
+    );
+
+    static private final ICustomerDao customerDao = new CachingCustomerDao(
+            new CustomerDao(connectionPool, rentalHistoryDao),
+            ENTITY_CACHE_SIZE,
+            ENTITY_CACHE_TTL_MILLIS
+    );
+
+    static private final int ASYNC_QUEUE_CAPACITY = 1_024;
+
+    static private final ExecutorService daoExecutor = AsyncDao.newBoundedExecutor(
+            connectionPool.getMaxSize(),
+            ASYNC_QUEUE_CAPACITY
+    );
+
+    static private final SearchIndexes searchIndexes = new SearchIndexes();
+
+    static private final IReservationDao reservationDao = new ReservationDao(connectionPool);
+
+    static private final ReservationIndex reservationIndex = new ReservationIndex();
+
+    static private final Path RENTAL_JOURNAL_PATH = Path.of("./src/carsharing/db/rentals.journal");
+
+    static private final long WRITE_BEHIND_FLUSH_MILLIS = 50;
+
+    static private void importCsv(ICompanyDao companyDao, ICarDao carDao, ICustomerDao customerDao, String fileName) {
         try {
-            initial.addSubMenu(0, manager);
+            ImportReport report = new CsvImporter(companyDao, carDao, customerDao).importFile(Path.of(fileName));
+            System.out.printf(
+                    "Imported %d rows (%d skipped) in %.2f s, %.0f rows/sec%n",
+                    report.getImportedRows(),
+                    report.getSkippedRows(),
+                    report.getElapsedSeconds(),
+                    report.getRowsPerSecond()
+            );
+        } catch (IOException e) {
+            System.out.println("Could not read '" + fileName + "': " + e.getMessage());
+        }
+    }
+
+    static private void exportSnapshot(String fileName) throws IOException {
+        ImportReport report = new SnapshotDao(connectionPool).export(Path.of(fileName));
+        if(report == null) {
+            System.out.println("Could not write the snapshot");
+            return;
+        }
+        System.out.printf(
+                "Wrote %d rows to %s in %.2f s, %.0f rows/sec%n",
+                report.getImportedRows(),
+                fileName,
+                report.getElapsedSeconds(),
+                report.getRowsPerSecond()
+        );
+    }
 
-            initial.addSubMenu(1, customers);
+    static private void restoreSnapshot(String fileName) throws IOException {
+        ImportReport report = new SnapshotDao(connectionPool).restore(Path.of(fileName));
+        System.out.printf(
+                "Restored %d rows (%d skipped) in %.2f s, %.0f rows/sec%n",
+                report.getImportedRows(),
+                report.getSkippedRows(),
+                report.getElapsedSeconds(),
+                report.getRowsPerSecond()
+        );
+    }
 
-            initial.getOptions().get(2).setAction(Main::createCustomerCallback);
+    // removes the flag and its value from the arguments, null when the flag is not there
+    static private String removeOption(List<String> arguments, String flag) {
+        int index = arguments.indexOf(flag);
+        if(index < 0 || index + 1 >= arguments.size()) return null;
+        String value = arguments.remove(index + 1);
+        arguments.remove(index);
+        return value;
+    }
 
-            manager.addSubMenu(0, companiesManager);
+    static private void runBenchmark(String[] args) throws IOException {
+        int[] sizes = Arrays.stream((args.length > 1 ? args[1] : "1000,100000,1000000").split(","))
+                .mapToInt(Integer::parseInt)
+                .toArray();
+        Path output = Path.of(args.length > 2 ? args[2] : "benchmark.json");
+        List<BenchmarkResult> results = new DaoBenchmark(sizes, 3, 5, 1_000).run();
+        DaoBenchmark.writeJson(results, output);
+        System.out.println("Results written to " + output.toAbsolutePath());
+    }
 
-            manager.getOptions().get(1).setAction(Main::createCompanyCallback);
+    public static void main(String[] args) {
+        StartupReport startupReport = new StartupReport();
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        boolean writeBehind = arguments.remove("--write-behind");
+        boolean inMemory = arguments.remove("--in-memory");
+        String shards = removeOption(arguments, "--shards");
+        int shardCount = shards == null ? 1 : Integer.parseInt(shards);
+        String warmFile = removeOption(arguments, "--warm");
+        args = arguments.toArray(String[]::new);
+        WriteBehindCustomerDao writeBehindCustomerDao = null;
+        ShardRouter shardRouter = null;
+        boolean failed = false;
+        try {
+            if(args.length > 0 && args[0].equals("--benchmark")) {
+                runBenchmark(args);
+                return;
+            }
 
-            for(int i = 0; i < companiesManager.getOptions().size(); i++) {
-                companiesManager.addSubMenu(i, cars, Main::beforeShowCarsMenuCallback, manager);
+            if(inMemory) {
+                if(shardCount > 1 || warmFile != null || (args.length > 0 && !args[0].equals("--server"))) {
+                    throw new IllegalStateException("--in-memory keeps all data in this process and only combines with --server");
+                }
+                // nothing reads H2, so the database file is never opened
+                connectionPool.close();
+            } else {
+                new SchemaMigrator(connectionPool).migrate();
+                startupReport.mark("migrate");
             }
 
-            for(int i = 0; i < customers.getOptions().size(); i++) {
-                customers.addSubMenu(i, rentedCars, Main::beforeShowRentedCarsCallback, initial);
+            ICompanyDao sessionCompanyDao = companyDao;
+            ICarDao sessionCarDao = carDao;
+            ICustomerDao rentalCustomerDao = customerDao;
+            IReservationDao sessionReservationDao = reservationDao;
+            IRentalHistoryDao sessionRentalHistoryDao = rentalHistoryDao;
+            if(shardCount > 1) {
+                shardRouter = new ShardRouter(connectionPool, shardCount);
+                shardRouter.prepare();
+                ShardedRentalHistoryDao shardedRentalHistoryDao = new ShardedRentalHistoryDao(shardRouter);
+                ShardedCustomerDao shardedCustomerDao = new ShardedCustomerDao(shardRouter, shardedRentalHistoryDao);
+                shardedCustomerDao.catchUpCopies();
+                sessionCompanyDao = new CachingCompanyDao(
+                        new ShardedCompanyDao(shardRouter),
+                        ENTITY_CACHE_SIZE,
+                        ENTITY_CACHE_TTL_MILLIS
+                );
+                sessionCarDao = new CachingCarDao(
+                        new ShardedCarDao(shardRouter),
+                        ENTITY_CACHE_SIZE,
+                        ENTITY_CACHE_TTL_MILLIS
+                );
+                rentalCustomerDao = new CachingCustomerDao(
+                        shardedCustomerDao,
+                        ENTITY_CACHE_SIZE,
+                        ENTITY_CACHE_TTL_MILLIS
+                );
+                sessionReservationDao = new ShardedReservationDao(shardRouter);
+                sessionRentalHistoryDao = shardedRentalHistoryDao;
+                startupReport.mark("shards");
+            } else if(!inMemory && ShardRouter.recordedShardCount(connectionPool) > 1) {
+                throw new IllegalStateException(String.format(
+                        "The database is split into %d shards, start with --shards %1$d",
+                        ShardRouter.recordedShardCount(connectionPool)
+                ));
             }
 
-            cars.getOptions().get(0).setAction(Main::printCarListCallback);
+            if(args.length == 2 && args[0].equals("--import")) {
+                importCsv(sessionCompanyDao, sessionCarDao, rentalCustomerDao, args[1]);
+                return;
+            }
 
-            cars.getOptions().get(1).setAction(Main::createCarCallback);
+            if(args.length == 2 && (args[0].equals("--snapshot") || args[0].equals("--restore"))) {
+                if(shardRouter != null) throw new IllegalStateException("A snapshot covers a single database file, run without --shards");
+                if(args[0].equals("--snapshot")) {
+                    exportSnapshot(args[1]);
+                } else {
+                    restoreSnapshot(args[1]);
+                }
+                return;
+            }
 
-            rentedCars.getOptions().get(0).setAction(Main::rentCarCallback);
+            ConnectionPool sessionPool = connectionPool;
+            if(inMemory) {
+                // nothing survives the process, there is no rental history so the reports are left out
+                InMemoryStore store = new InMemoryStore();
+                sessionCompanyDao = new InMemoryCompanyDao(store);
+                sessionCarDao = new InMemoryCarDao(store);
+                rentalCustomerDao = new InMemoryCustomerDao(store);
+                sessionReservationDao = new InMemoryReservationDao(store);
+                sessionRentalHistoryDao = null;
+                sessionPool = null;
+            } else if(writeBehind && shardRouter == null) {
+                // the journal replays into a single file, rentals of a sharded layout are written through
+                writeBehindCustomerDao = new WriteBehindCustomerDao(
+                        customerDao,
+                        rentalHistoryDao,
+                        connectionPool,
+                        RENTAL_JOURNAL_PATH,
+                        WRITE_BEHIND_FLUSH_MILLIS
+                );
+                rentalCustomerDao = writeBehindCustomerDao;
+                startupReport.mark("rental state");
+            }
 
-            rentedCars.getOptions().get(1).setAction(Main::returnRentedCarCallback);
+            AvailabilityIndex availabilityIndex;
+            if(writeBehindCustomerDao != null) {
+                // unflushed rentals are only known in memory
+                WriteBehindCustomerDao rentals = writeBehindCustomerDao;
+                availabilityIndex = new AvailabilityIndex(companyId -> carDao.getCarsByCompanyId(companyId).stream()
+                        .filter(car -> !rentals.isCarRented(car.getId()))
+                        .toList());
+            } else {
+                availabilityIndex = new AvailabilityIndex(sessionCarDao::getAvailableCarsByCompanyId);
+            }
 
-            rentedCars.getOptions().get(2).setAction(Main::printRentedCarCallback);
+            CompletableFuture<Void> warmed = CompletableFuture.completedFuture(null);
+            if(warmFile != null) {
+                warmed = CompletableFuture.runAsync(() -> {
+                    try {
+                        int rows = searchIndexes.warm(Path.of(warmFile));
+                        System.err.printf("Search indexes warmed after %d ms (%d rows)%n", startupReport.getElapsedMillis(), rows);
+                    } catch (IOException e) {
+                        System.err.println("Could not warm the search indexes from '" + warmFile + "': " + e.getMessage());
+                    }
+                }, daoExecutor);
+            }
+            ICompanyDao indexedCompanyDao = sessionCompanyDao;
+            ICarDao indexedCarDao = sessionCarDao;
+            ICustomerDao indexedCustomerDao = rentalCustomerDao;
+            // the database is read after the file, so names from an older snapshot never replace newer ones
+            warmed.thenCompose(ignored -> searchIndexes.rebuildAsync(
+                    new AsyncCompanyDao(indexedCompanyDao, daoExecutor),
+                    new AsyncCarDao(indexedCarDao, daoExecutor),
+                    new AsyncCustomerDao(indexedCustomerDao, daoExecutor)
+            )).whenComplete((ignored, e) -> {
+                if(e != null) {
+                    e.printStackTrace();
+                } else {
+                    System.err.printf(
+                            "Search indexes ready after %d ms (%d names)%n",
+                            startupReport.getElapsedMillis(),
+                            searchIndexes.size()
+                    );
+                }
+            });
+            reservationIndex.rebuildAsync(sessionReservationDao, daoExecutor).whenComplete((ignored, e) -> {
+                if(e != null) {
+                    e.printStackTrace();
+                } else {
+                    System.err.printf(
+                            "Reservations ready after %d ms (%d upcoming)%n",
+                            startupReport.getElapsedMillis(),
+                            reservationIndex.size()
+                    );
+                }
+            });
+            startupReport.print();
+
+            if(args.length == 2 && args[0].equals("--server")) {
+                new CarSharingServer(
+                        Integer.parseInt(args[1]),
+                        sessionCompanyDao,
+                        sessionCarDao,
+                        rentalCustomerDao,
+                        sessionRentalHistoryDao,
+                        availabilityIndex,
+                        sessionReservationDao,
+                        reservationIndex,
+                        searchIndexes,
+                        sessionPool
+                ).serve();
+                return;
+            }
 
-            // initialization
-            initial.show();
-        } catch (RuntimeException e) {
+            new CarSharingSession(
+                    sessionCompanyDao,
+                    sessionCarDao,
+                    rentalCustomerDao,
+                    sessionRentalHistoryDao,
+                    availabilityIndex,
+                    sessionReservationDao,
+                    reservationIndex,
+                    searchIndexes,
+                    sessionPool,
+                    new MenuIO(System.in, System.out)
+            ).run();
+        } catch (SchemaMigrationException e) {
+            System.err.println(e.getMessage());
+            failed = true;
+        } catch (IOException | RuntimeException e) {
             e.printStackTrace();
+        } finally {
+            daoExecutor.shutdown();
+            if(shardRouter != null) shardRouter.close();
+            if(writeBehindCustomerDao != null) {
+                try {
+                    writeBehindCustomerDao.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
         }
-
+        if(failed) System.exit(1);
     }
 }
 
@@ -0,0 +1,69 @@
+package carsharing;
+
+import java.sql.*;
+import java.util.*;
+
+// plain main without a test framework; there is no build file wiring it up, so run it by hand from the task
+// directory with the H2 jar the app uses: javac -cp h2.jar -d out src/carsharing/*.java test/carsharing/*.java
+// && java -cp out:h2.jar carsharing.SchemaMigratorTest
+class SchemaMigratorTest {
+
+    static private final ObjectInstanceCreator<Integer> intCreator = (ResultSet rs) -> rs.getObject(1) == null ? null : rs.getInt(1);
+
+    public static void main(String[] args) throws SQLException {
+        rentalUniquenessKeepsTheEarliestCustomer();
+        failedMigrationIsThrown();
+        System.out.println("SchemaMigratorTest passed");
+    }
+
+    static void rentalUniquenessKeepsTheEarliestCustomer() throws SQLException {
+        try (ConnectionPool pool = new ConnectionPool("jdbc:h2:mem:migrator-duplicates;DB_CLOSE_DELAY=-1", 2, 60_000)) {
+            SchemaMigrator migrator = new SchemaMigrator(pool);
+            check(migrator.migrateTo(5) == 5, "schema stops at version 5");
+            try (PooledConnection conn = pool.borrow()) {
+                conn.executeUpdate("INSERT INTO COMPANY(NAME) VALUES (?)", "Acme");
+                conn.executeUpdate("INSERT INTO CAR(NAME, COMPANY_ID) VALUES (?, 1), (?, 1)", "Alpha", "Beta");
+                // three customers on car 1, one on car 2, one without a car
+                conn.executeUpdate(
+                        "INSERT INTO CUSTOMER(NAME, RENTED_CAR_ID) VALUES (?, 1), (?, 1), (?, 2), (?, 1), (?, NULL)",
+                        "first", "second", "third", "fourth", "fifth"
+                );
+            }
+
+            check(migrator.migrate() == 9, "schema reaches the latest version");
+
+            try (PooledConnection conn = pool.borrow()) {
+                List<Integer> rented = conn.executeQuery("SELECT RENTED_CAR_ID FROM CUSTOMER ORDER BY ID", intCreator);
+                check(rented.equals(Arrays.asList(1, null, 2, null, null)), "duplicates are cleared, got " + rented);
+                boolean rejected = false;
+                try {
+                    conn.executeUpdate("UPDATE CUSTOMER SET RENTED_CAR_ID = 1 WHERE ID = 2");
+                } catch (SQLException se) {
+                    rejected = true;
+                }
+                check(rejected, "a second rental of car 1 is rejected");
+            }
+            new SchemaMigrator(pool).executeUpdateStatement("SHUTDOWN");
+        }
+    }
+
+    static void failedMigrationIsThrown() throws SQLException {
+        try (ConnectionPool pool = new ConnectionPool("jdbc:h2:mem:migrator-broken;DB_CLOSE_DELAY=-1", 2, 60_000)) {
+            try (PooledConnection conn = pool.borrow()) {
+                conn.executeUpdate("CREATE TABLE SCHEMA_VERSION(VERSION INT PRIMARY KEY)");
+            }
+            boolean thrown = false;
+            try {
+                new SchemaMigrator(pool).migrate();
+            } catch (SchemaMigrationException e) {
+                thrown = true;
+            }
+            check(thrown, "a failed migration throws");
+            new SchemaMigrator(pool).executeUpdateStatement("SHUTDOWN");
+        }
+    }
+
+    static private void check(boolean condition, String description) {
+        if(!condition) throw new AssertionError(description);
+    }
+}